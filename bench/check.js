@@ -0,0 +1,332 @@
+// Checks, with no IDE, that nbts-services.js behaves the way TSService relies on when programs are
+// taken down and recreated. Each scenario generates a project with genproject.js, loads it into
+// nodejs the way the plugin does, and compares the diagnostics of every file before and after.
+// Only the nodejs side is covered: the requests are made from here, not by TSService, whose own
+// handling of a dead process and of evicted programs is tested by TSServiceRecoveryTest and
+// TSServiceEvictionTest under test/unit/src/netbeanstypescript.
+//
+//   node bench/check.js [options] <nbts-services.js>
+//
+// Options:
+//   --lib-dir <dir>      lib directory of the TypeScript the plugin is built with (required)
+//   --files <n>          source files in the generated project (default 300)
+//   --scenario <name>    run only this scenario; may be repeated (default all of them)
+//   --timeout <seconds>  fail a scenario that has not finished by then (default 600)
+//
+// Scenarios:
+//   evict     drops a program with deleteProgram and loads it again, while requests for another
+//             program are in flight
+//   settings  changes the target in tsconfig.json of one of two programs that share their files,
+//             edits a file, then changes both back: neither program may fail, and each must end
+//             up with the diagnostics it started with
+//   kill      kills nodejs while it checks a program, then loads the program by path into a new
+//             process, which must give the same diagnostics as the first one
+//
+// Prints one line per scenario, and exits with status 1 if any of them failed.
+
+'use strict';
+
+var childProcess = require('child_process');
+var fs = require('fs');
+var os = require('os');
+var path = require('path');
+
+function usage() {
+    console.error('usage: node check.js --lib-dir dir [--files n] [--scenario name]... [--timeout seconds] <nbts-services.js>');
+    process.exit(2);
+}
+
+var libDir = null, fileCount = 300, only = [], timeout = 600, services = null;
+var argv = process.argv.slice(2);
+for (var i = 0; i < argv.length; i++) {
+    if (argv[i] === '--lib-dir') {
+        libDir = argv[++i];
+    } else if (argv[i] === '--files') {
+        fileCount = Number(argv[++i]);
+    } else if (argv[i] === '--timeout') {
+        timeout = Number(argv[++i]);
+    } else if (argv[i] === '--scenario') {
+        only.push(argv[++i]);
+    } else if (argv[i].charAt(0) === '-' || services !== null) {
+        usage();
+    } else {
+        services = argv[i];
+    }
+}
+if (!services || !libDir || !(fileCount > 0) || !(timeout > 0)) usage();
+
+// A nodejs process running nbts-services.js. send() writes a request framed as TSService does
+// and returns a promise of its result, which is rejected if nodejs answers with an exception, the
+// request is cancelled, or the process exits first.
+function Services() {
+    var self = this;
+    this.cancellationDir = fs.mkdtempSync(path.join(os.tmpdir(), 'nbts-check-'));
+    this.child = childProcess.spawn(process.execPath, [services, this.cancellationDir], { stdio: ['pipe', 'pipe', 'inherit'] });
+    this.nextId = 1;
+    this.calls = {};
+    this.exited = false;
+    var pending = Buffer.alloc(0);
+    this.child.stdout.on('data', function (data) {
+        pending = pending.length ? Buffer.concat([pending, data]) : data;
+        for (;;) {
+            var nl = pending.indexOf(10);
+            if (nl < 0) return;
+            var header = pending.toString('ascii', 0, nl);
+            var space = header.indexOf(' ');
+            var length = Number(header.substring(space + 1));
+            if (pending.length < nl + 1 + length) return;
+            self.onResponse(header.charAt(0), header.substring(1, space), pending.toString('utf8', nl + 1, nl + 1 + length));
+            pending = pending.slice(nl + 1 + length);
+        }
+    });
+    this.child.stdin.on('error', function () {});
+    this.child.on('exit', function (code, signal) {
+        self.exited = true;
+        Object.keys(self.calls).forEach(function (id) {
+            self.calls[id].reject(new Error('nodejs exited (' + (signal || code) + ') before answering ' + self.calls[id].method));
+        });
+        self.calls = {};
+        try {
+            fs.readdirSync(self.cancellationDir).forEach(function (f) { fs.unlinkSync(path.join(self.cancellationDir, f)); });
+            fs.rmdirSync(self.cancellationDir);
+        } catch (e) {}
+    });
+}
+
+Services.prototype.onResponse = function (kind, id, body) {
+    if (kind === 'L' || kind === 'M') return;
+    var call = this.calls[id];
+    if (!call) return;
+    delete this.calls[id];
+    if (kind === 'R') {
+        call.resolve(body === '' ? undefined : JSON.parse(body));
+    } else {
+        call.reject(new Error(call.method + (kind === 'C' ? ' was cancelled' : ' failed: ' + body)));
+    }
+};
+
+// If the last argument is text it is sent raw after the JSON, as TSService does with file texts
+Services.prototype.send = function (progId, method, args, text) {
+    var self = this, id = String(this.nextId++);
+    var payload = Buffer.from(JSON.stringify([progId, method].concat(args || [])), 'utf8');
+    var body = text == null ? null : Buffer.from(text, 'utf8');
+    var header = Buffer.from(id + ' ' + payload.length + (body ? ' ' + body.length : '') + '\n', 'ascii');
+    return new Promise(function (resolve, reject) {
+        if (self.exited) {
+            reject(new Error('nodejs has exited'));
+            return;
+        }
+        self.calls[id] = { method: method, resolve: resolve, reject: reject };
+        self.child.stdin.write(body ? Buffer.concat([header, payload, body]) : Buffer.concat([header, payload]));
+    });
+};
+
+Services.prototype.close = function () {
+    this.child.stdin.end();
+};
+
+// The generated project: every file the indexer would find, and an edited text for one source
+// file that stands for a file open in the editor with unsaved changes
+function generateProject(dir) {
+    var gen = childProcess.spawnSync(process.execPath,
+        [path.join(__dirname, 'genproject.js'), '--files', String(fileCount), dir],
+        { stdio: ['ignore', 'ignore', 'inherit'] });
+    if (gen.status !== 0) process.exit(1);
+    var files = [];
+    (function walk(rel) {
+        fs.readdirSync(path.join(dir, rel)).sort().forEach(function (name) {
+            var child = rel ? rel + '/' + name : name;
+            if (fs.statSync(path.join(dir, child)).isDirectory()) {
+                walk(child);
+            } else {
+                files.push(child);
+            }
+        });
+    })('');
+    var checked = files.filter(function (rel) {
+        return /\.ts$/.test(rel) && rel.indexOf('node_modules') < 0 && rel.indexOf('typings') < 0;
+    });
+    var open = checked[Math.floor(checked.length / 2)];
+    var texts = {};
+    texts[open] = fs.readFileSync(path.join(dir, open), 'utf8') + 'var nbtsUnsaved: number = "not a number";\n';
+    return { dir: dir, files: files, checked: checked, texts: texts };
+}
+
+function setBuiltinLibs(s) {
+    return Promise.all(['lib.d.ts', 'lib.es6.d.ts'].map(function (lib) {
+        return s.send(null, 'setBuiltinLib', ['(builtin) ' + lib], fs.readFileSync(path.join(libDir, lib), 'utf8'));
+    }));
+}
+
+// Creates a program the way ProgramData.replay does: the texts sent from the IDE, then every other
+// file as a path for nodejs to read, in one bulk load
+function load(s, progId, project) {
+    var names = [], paths = [];
+    project.files.forEach(function (rel) {
+        if (!(rel in project.texts)) {
+            names.push(rel);
+            paths.push(path.resolve(project.dir, rel));
+        }
+    });
+    var sent = [s.send(null, 'newProgram', [progId]), s.send(progId, 'beginBulkLoad')];
+    Object.keys(project.texts).forEach(function (rel) {
+        sent.push(s.send(progId, 'updateFile', [rel, false], project.texts[rel]));
+    });
+    sent.push(s.send(progId, 'addDiskFiles', [names, paths]));
+    sent.push(s.send(progId, 'endBulkLoad'));
+    return Promise.all(sent);
+}
+
+// The diagnostics of every checked file, asked for in batches as updateErrors does, all written
+// at once. Keys are left out, since they depend on when getDiagnosticsKeys was last called.
+function checkAll(s, progId, project) {
+    var batches = [];
+    for (var i = 0; i < project.checked.length; i += 200) {
+        batches.push(s.send(progId, 'getDiagnosticsBatch', [project.checked.slice(i, i + 200), 1e9]));
+    }
+    return Promise.all(batches).then(function (results) {
+        var all = [].concat.apply([], results.map(function (r) { return r || []; }));
+        return all.map(function (d) { return JSON.stringify({ errs: d.errs, metaError: d.metaError }); });
+    });
+}
+
+// Resolves to null if the two lists of diagnostics are the same, or else describes the first
+// difference
+function compare(project, before, after) {
+    if (before.length !== after.length) {
+        return 'diagnostics for ' + before.length + ' files before, ' + after.length + ' after';
+    }
+    for (var i = 0; i < before.length; i++) {
+        if (before[i] !== after[i]) {
+            return project.checked[i] + ': ' + before[i] + ' before, ' + after[i] + ' after';
+        }
+    }
+    return null;
+}
+
+// Settles when every promise has, whether or not it was fulfilled
+function settled(promises) {
+    return Promise.all(promises.map(function (p) {
+        return p.then(function () {}, function () {});
+    }));
+}
+
+var scenarios = {
+    evict: function (project) {
+        var s = new Services(), before;
+        return setBuiltinLibs(s)
+            .then(function () { return Promise.all([load(s, 1, project), load(s, 2, project)]); })
+            .then(function () { return checkAll(s, 1, project); })
+            .then(function (result) {
+                before = result;
+                // Program 2's checks are in flight while program 1 is dropped and recreated
+                var busy = checkAll(s, 2, project);
+                var reloaded = s.send(null, 'deleteProgram', [1]).then(function () { return load(s, 1, project); });
+                return Promise.all([busy, reloaded.then(function () { return checkAll(s, 1, project); })]);
+            })
+            .then(function (results) {
+                s.close();
+                return compare(project, before, results[1]);
+            }, function (e) {
+                s.close();
+                throw e;
+            });
+    },
+    settings: function (project) {
+        var s = new Services(), before, config = 'tsconfig.json', edited = project.checked[0];
+        var configText = fs.readFileSync(path.join(project.dir, config), 'utf8');
+        var es6 = JSON.parse(configText);
+        es6.compilerOptions.target = 'es6';
+        var end = fs.readFileSync(path.join(project.dir, edited), 'utf8').length;
+        var comment = '// edited\n';
+        return setBuiltinLibs(s)
+            .then(function () { return Promise.all([load(s, 1, project), load(s, 2, project)]); })
+            .then(function () { return checkAll(s, 1, project); })
+            .then(function (result) {
+                before = result;
+                // A change to the settings that affects syntax makes the language service parse
+                // every file again, and the next edit updates one in place
+                return s.send(1, 'updateFile', [config, true], JSON.stringify(es6));
+            })
+            .then(function () { return checkAll(s, 1, project); })
+            .then(function () { return s.send(1, 'editFile', [edited, end, end, true], comment); })
+            .then(function () { return checkAll(s, 1, project); })
+            .then(function () {
+                return Promise.all([s.send(1, 'updateFile', [config, false], configText),
+                                    s.send(1, 'editFile', [edited, end, end + comment.length, false], '')]);
+            })
+            .then(function () { return Promise.all([checkAll(s, 1, project), checkAll(s, 2, project)]); })
+            .then(function (results) {
+                s.close();
+                return compare(project, before, results[0]) || compare(project, before, results[1]);
+            }, function (e) {
+                s.close();
+                throw e;
+            });
+    },
+    kill: function (project) {
+        var s = new Services(), before;
+        return setBuiltinLibs(s)
+            .then(function () { return load(s, 1, project); })
+            .then(function () { return checkAll(s, 1, project); })
+            .then(function (result) {
+                before = result;
+                // nodejs dies while it checks the program again, as if it had crashed
+                var batches = [];
+                for (var i = 0; i < project.checked.length; i += 20) {
+                    batches.push(s.send(1, 'getDiagnosticsBatch', [project.checked.slice(i, i + 20), 1e9]));
+                }
+                batches[0].then(function () { s.child.kill('SIGKILL'); }, function () {});
+                return settled(batches);
+            })
+            .then(function () {
+                // A new process must get the same diagnostics from the same files
+                s = new Services();
+                return setBuiltinLibs(s);
+            })
+            .then(function () { return load(s, 1, project); })
+            .then(function () { return checkAll(s, 1, project); })
+            .then(function (after) {
+                s.close();
+                return compare(project, before, after);
+            }, function (e) {
+                s.close();
+                throw e;
+            });
+    }
+};
+
+var names = only.length ? only : Object.keys(scenarios);
+names.forEach(function (name) {
+    if (!scenarios[name]) {
+        console.error('Unknown scenario ' + name);
+        process.exit(2);
+    }
+});
+
+var base = fs.mkdtempSync(path.join(os.tmpdir(), 'nbts-check-project-'));
+var project = generateProject(path.join(base, 'project'));
+var failed = false;
+names.reduce(function (prev, name) {
+    return prev.then(function () {
+        var start = Date.now(), timer;
+        var timedOut = new Promise(function (resolve) {
+            timer = setTimeout(function () { resolve('no answer after ' + timeout + 's'); }, timeout * 1000);
+        });
+        return Promise.race([scenarios[name](project), timedOut]).then(function (difference) {
+            clearTimeout(timer);
+            return difference;
+        }, function (e) {
+            clearTimeout(timer);
+            return String(e && e.message || e);
+        }).then(function (difference) {
+            if (difference) failed = true;
+            console.log((difference ? 'FAIL ' : 'ok   ') + name + ' (' + (Date.now() - start) + 'ms)' +
+                        (difference ? ': ' + difference : ''));
+        });
+    });
+}, Promise.resolve()).then(function () {
+    childProcess.spawnSync(process.platform === 'win32' ? 'cmd' : 'rm',
+        process.platform === 'win32' ? ['/c', 'rmdir', '/s', '/q', base] : ['-rf', base]);
+    process.exit(failed ? 1 : 0);
+});
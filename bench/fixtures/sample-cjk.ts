@@ -0,0 +1,115 @@
+/// <reference path="../typings/lib.d.ts" />
+
+/**
+ * 在庫管理モジュール：商品、倉庫、入出庫の記録を扱う。
+ * 文字列とコメントの大半が日本語・中国語で、表は罫線文字で描かれている。
+ *
+ * ┌──────────┬──────────┬──────────┐
+ * │ 状態     │ 意味     │ 次の状態 │
+ * ├──────────┼──────────┼──────────┤
+ * │ 入荷待ち │ 未着     │ 在庫あり │
+ * │ 在庫あり │ 出荷可能 │ 出荷済み │
+ * │ 出荷済み │ 完了     │ ──       │
+ * └──────────┴──────────┴──────────┘
+ */
+namespace app.inventory {
+    export enum 状態 { 入荷待ち, 在庫あり, 出荷済み }
+
+    export interface 商品 {
+        id: number;
+        名前: string;       // 表示名（例：「緑茶 500ml」）
+        分類: string;       // 飲料／食品／日用品
+        単価: number;       // 税抜き、円
+        状態?: 状態;
+    }
+
+    export interface 記録 {
+        商品id: number;
+        数量: number;
+        日時: Date;
+        備考?: string;
+    }
+
+    // 罫線で囲んだ見出しを作る。全角文字は二桁として数える。
+    export function 見出し(文字列: string): string {
+        var 幅 = 0;
+        for (var i = 0; i < 文字列.length; i++) {
+            幅 += 文字列.charCodeAt(i) > 0xFF ? 2 : 1;
+        }
+        var 線 = new Array(幅 + 3).join("─");
+        return `┌${線}┐\n│ ${文字列} │\n└${線}┘`;
+    }
+
+    export class 倉庫 {
+        private 在庫: { [id: number]: number } = {};
+        private 履歴: 記録[] = [];
+
+        constructor(public 名称: string, private 所在地: string) {}
+
+        get 表示名(): string {
+            return `${this.名称}（${this.所在地}）`;
+        }
+
+        入庫(品: 商品, 数量: number, 備考?: string) {
+            if (数量 <= 0) {
+                throw new Error(`入庫数量が不正です：${数量}`);
+            }
+            this.在庫[品.id] = (this.在庫[品.id] || 0) + 数量;
+            品.状態 = 状態.在庫あり;
+            this.履歴.push({ 商品id: 品.id, 数量: 数量, 日時: new Date(), 備考: 備考 });
+        }
+
+        出庫(品: 商品, 数量: number) {
+            var 残り = (this.在庫[品.id] || 0) - 数量;
+            if (残り < 0) {
+                throw new Error(`「${品.名前}」の在庫が足りません（不足 ${-残り} 個）`);
+            }
+            this.在庫[品.id] = 残り;
+            if (残り === 0) {
+                品.状態 = 状態.出荷済み;
+            }
+            this.履歴.push({ 商品id: 品.id, 数量: -数量, 日時: new Date() });
+        }
+
+        数量(品: 商品) {
+            return this.在庫[品.id] || 0;
+        }
+
+        /** 在庫表を罫線つきで返す。 */
+        一覧(品々: 商品[]) {
+            var 行 = 品々.map(品 => `│ ${品.名前} │ ${this.数量(品)} │ ${状態[品.状態]} │`);
+            return ["┌────────┬──────┬────────┐", "│ 商品名 │ 数量 │ 状態   │", "├────────┼──────┼────────┤"]
+                .concat(行, ["└────────┴──────┴────────┘"]).join("\n");
+        }
+    }
+
+    // 简体中文注释：按分类汇总库存，返回每个分类的总数量和总金额。
+    export function 汇总(仓库: 倉庫, 品々: 商品[]) {
+        var 结果: { [分类: string]: { 数量: number; 金额: number } } = {};
+        品々.forEach(品 => {
+            var 项 = 结果[品.分類] || (结果[品.分類] = { 数量: 0, 金额: 0 });
+            var n = 仓库.数量(品);
+            项.数量 += n;
+            项.金额 += n * 品.単価;
+        });
+        return 结果;
+    }
+
+    export const 既定の商品: 商品[] = [
+        { id: 1, 名前: "緑茶 500ml", 分類: "飲料", 単価: 120 },
+        { id: 2, 名前: "烏龍茶 2L", 分類: "飲料", 単価: 240 },
+        { id: 3, 名前: "おにぎり（鮭）", 分類: "食品", 単価: 150 },
+        { id: 4, 名前: "カップ麺・醤油味", 分類: "食品", 単価: 198 },
+        { id: 5, 名前: "歯ブラシ（やわらかめ）", 分類: "日用品", 単価: 280 },
+        { id: 6, 名前: "洗濯洗剤 詰め替え用", 分類: "日用品", 単価: 398 }
+    ];
+
+    export function 報告(仓库: 倉庫): string {
+        var 合計 = 汇总(仓库, 既定の商品);
+        var 行: string[] = [見出し(`${仓库.表示名} の在庫報告`)];
+        for (var 分類 in 合計) {
+            行.push(`  ・${分類}：${合計[分類].数量} 個、${合計[分類].金额.toLocaleString()} 円`);
+        }
+        return 行.join("\n");
+    }
+}
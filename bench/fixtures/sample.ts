@@ -0,0 +1,149 @@
+/// <reference path="../typings/lib.d.ts" />
+
+/**
+ * A small but typical module: interfaces, generics, classes with accessors, enums, arrow
+ * functions, template strings and a few deliberately loose types.
+ */
+namespace app.model {
+    export enum Status { Active, Suspended, Deleted = 10 }
+
+    export interface Entity {
+        id: number;
+        name: string;
+        status?: Status;
+    }
+
+    export interface Repository<T extends Entity> {
+        get(id: number): T;
+        find(predicate: (item: T) => boolean): T[];
+        save(item: T): Promise<T>;
+        remove(id: number): boolean;
+    }
+
+    export class User implements Entity {
+        private static nextId = 1;
+        id: number;
+        status = Status.Active;
+        protected roles: string[] = [];
+
+        constructor(public name: string, private email: string, roles?: string[]) {
+            this.id = User.nextId++;
+            if (roles) {
+                this.roles = roles.slice();
+            }
+        }
+
+        get displayName(): string {
+            return `${this.name} <${this.email}>`;
+        }
+
+        set displayName(value: string) {
+            var match = /^(.*) <(.*)>$/.exec(value);
+            if (match) {
+                this.name = match[1];
+                this.email = match[2];
+            }
+        }
+
+        hasRole(role: string) {
+            return this.roles.indexOf(role) >= 0;
+        }
+
+        /** @deprecated use hasRole */
+        isAdmin() {
+            return this.hasRole("admin");
+        }
+    }
+
+    export class MemoryRepository<T extends Entity> implements Repository<T> {
+        private items: { [id: number]: T } = {};
+
+        get(id: number) {
+            return this.items[id];
+        }
+
+        find(predicate: (item: T) => boolean) {
+            var result: T[] = [];
+            for (var key in this.items) {
+                var item = this.items[key];
+                if (predicate(item)) {
+                    result.push(item);
+                }
+            }
+            return result;
+        }
+
+        save(item: T) {
+            this.items[item.id] = item;
+            return Promise.resolve(item);
+        }
+
+        remove(id: number) {
+            var existed = id in this.items;
+            delete this.items[id];
+            return existed;
+        }
+    }
+}
+
+namespace app.view {
+    import User = app.model.User;
+    import Status = app.model.Status;
+
+    type Renderer<T> = (item: T, index: number) => string;
+
+    const statusLabels: { [status: number]: string } = {
+        [Status.Active]: "active",
+        [Status.Suspended]: "suspended",
+        [Status.Deleted]: "deleted"
+    };
+
+    export function renderList<T>(items: T[], render: Renderer<T>): string {
+        return "<ul>" + items.map((item, i) => "<li>" + render(item, i) + "</li>").join("") + "</ul>";
+    }
+
+    export function renderUser(user: User, index: number) {
+        let label = statusLabels[user.status] || "unknown";
+        let classes = ["user", index % 2 ? "odd" : "even"];
+        if (user.isAdmin()) {
+            classes.push("admin");
+        }
+        return `<span class="${classes.join(" ")}">${user.displayName} (${label})</span>`;
+    }
+
+    export abstract class Widget<Props> {
+        private listeners: Array<(props: Props) => void> = [];
+        constructor(protected props: Props) {}
+        abstract render(): string;
+        update(changes: Props) {
+            for (var key in changes) {
+                (<any> this.props)[key] = (<any> changes)[key];
+            }
+            this.listeners.forEach(listener => listener(this.props));
+        }
+        onUpdate(listener: (props: Props) => void) {
+            this.listeners.push(listener);
+            return () => {
+                var i = this.listeners.indexOf(listener);
+                if (i >= 0) this.listeners.splice(i, 1);
+            };
+        }
+    }
+
+    export class UserList extends Widget<{ users: User[]; filter?: string }> {
+        render() {
+            var filter = this.props.filter;
+            var users = filter ? this.props.users.filter(u => u.name.indexOf(filter) >= 0) : this.props.users;
+            return renderList(users, renderUser);
+        }
+    }
+
+    export function debounce<F extends Function>(fn: F, wait = 100): F {
+        var timer: number;
+        return <any> function () {
+            var args = arguments, self = this;
+            clearTimeout(timer);
+            timer = setTimeout(() => fn.apply(self, args), wait);
+        };
+    }
+}
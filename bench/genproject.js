@@ -0,0 +1,401 @@
+// Generates a TypeScript project of a given shape, for measuring how the plugin scales without
+// needing a real project that can't be shared. The same options and seed always give the same
+// project.
+//
+//   node bench/genproject.js [options] <output dir>
+//
+// Options:
+//   --files <n>          source files under src/ (default 1000), 50 to a directory
+//   --fanout <n>         imports of other source files per file (default 5)
+//   --depth <n>          deepest chain of classes extending classes of other files (default 4)
+//   --packages <n>       packages in node_modules (default 20)
+//   --package-decls <n>  declarations in each package's index.d.ts (default 200)
+//   --excluded <n>       files under build/, which tsconfig.json excludes (default files / 10)
+//   --errors <rate>      fraction of source files with a type error and an implicit any (default 0.02)
+//   --seed <n>           seed for the choices above (default 1)
+//   --session <file>     also write a session for replay.js (see below)
+//   --warm-session <file>  and one of reopening the project with every file's diagnostics cached
+//   --edit-session <file>  and one of opening the project, then saving a change to one file and
+//                        checking the files that may be affected
+//   --unordered-edit-session <file>  the same, checking the affected files in an arbitrary order
+//   --edit <n>           which source file the edit session changes (default the last one, which
+//                        no other file imports)
+//   --lib-dir <dir>      where to find lib.d.ts and lib.es6.d.ts for the session, normally the
+//                        lib directory of the TypeScript the plugin is built with
+//
+// The session has the requests the plugin makes when the project is first opened: it loads the
+// default libraries, adds every file the indexer finds as a file to read from disk, gets the keys
+// of the files' cached diagnostics, and then checks each file for errors one at a time the way
+// updateErrors does when nothing is cached. The warm session stops after getting the keys, since
+// every file is then found in the cache. The edit session also starts like the warm one, then
+// changes a file, gets the keys again and checks the files whose keys changed: the edited file and
+// every file that imports it, directly or not. Like updateErrors, it checks the edited file and the
+// files that import it directly first, after asking nodejs which those are; the unordered edit
+// session checks the same files in an arbitrary order, as updateErrors used to. For each edit
+// session this prints which getDiagnosticsBatch request checks the last of those files. Sessions
+// have no timing, so replay them with --asap.
+
+'use strict';
+
+var fs = require('fs');
+var path = require('path');
+
+var defaults = {
+    files: 1000,
+    fanout: 5,
+    depth: 4,
+    packages: 20,
+    packageDecls: 200,
+    excluded: -1,
+    errors: 0.02,
+    seed: 1,
+    session: null,
+    warmSession: null,
+    editSession: null,
+    unorderedEditSession: null,
+    edit: -1,
+    libDir: null
+};
+
+// mulberry32, so that projects don't depend on the node version's Math.random
+function random(seed) {
+    return function () {
+        seed = (seed + 0x6D2B79F5) | 0;
+        var t = Math.imul(seed ^ (seed >>> 15), 1 | seed);
+        t = (t + Math.imul(t ^ (t >>> 7), 61 | t)) ^ t;
+        return ((t ^ (t >>> 14)) >>> 0) / 4294967296;
+    };
+}
+
+function mkdirs(dir) {
+    if (!fs.existsSync(dir)) {
+        mkdirs(path.dirname(dir));
+        fs.mkdirSync(dir);
+    }
+}
+
+function sourceName(i) {
+    return 'src/p' + Math.floor(i / 50) + '/m' + i + '.ts';
+}
+
+function importPath(from, to) {
+    var rel = path.posix.relative(path.posix.dirname(sourceName(from)), sourceName(to)).replace(/\.ts$/, '');
+    return rel.charAt(0) === '.' ? rel : './' + rel;
+}
+
+function packageText(pkg, decls) {
+    var lines = ['// Declarations of generated package pkg' + pkg, ''];
+    for (var s = 0; s < decls; s++) {
+        lines.push(
+            'export interface Options' + s + ' {',
+            '    size: number;',
+            '    label?: string;',
+            '    onChange?: (value: number, previous: number) => void;',
+            '}',
+            'export declare class Widget' + s + ' {',
+            '    constructor(options: Options' + s + ');',
+            '    count: number;',
+            '    render(target?: string): string;',
+            '    update<T extends Options' + s + '>(options: T): this;',
+            '}',
+            'export declare function create' + s + '(options: Options' + s + '): Widget' + s + ';',
+            '');
+    }
+    return lines.join('\n');
+}
+
+// Chooses which earlier files file i imports: half from its neighbours, which tend to be in the
+// same directory, and half from anywhere before it
+function chooseImports(i, fanout, rand) {
+    var chosen = {}, imports = [];
+    var wanted = Math.min(fanout, i);
+    while (imports.length < wanted) {
+        var j = imports.length % 2 === 0
+            ? Math.max(0, i - 1 - Math.floor(rand() * 20))
+            : Math.floor(rand() * i);
+        if (!chosen[j]) {
+            chosen[j] = true;
+            imports.push(j);
+        }
+    }
+    return imports;
+}
+
+function sourceText(i, imports, base, packages, options, withError) {
+    var lines = [];
+    imports.forEach(function (j) {
+        lines.push('import { C' + j + ', I' + j + ', make' + j + ' } from "' + importPath(i, j) + '";');
+    });
+    packages.forEach(function (p) {
+        lines.push('import * as pkg' + p + ' from "pkg' + p + '";');
+    });
+    lines.push(
+        '',
+        'export interface I' + i + ' {',
+        '    id: number;',
+        '    name: string;',
+        '    tags: string[];');
+    imports.forEach(function (j) {
+        lines.push('    ref' + j + '?: I' + j + ';');
+    });
+    lines.push(
+        '}',
+        '',
+        'export enum E' + i + ' { Alpha, Beta, Gamma }',
+        '');
+    if (base >= 0) {
+        lines.push(
+            'export class C' + i + ' extends C' + base + ' {',
+            '    protected value' + i + ' = ' + i + ';',
+            '    constructor(label: string) {',
+            '        super(label);',
+            '    }');
+    } else {
+        lines.push(
+            'export class C' + i + ' {',
+            '    protected value' + i + ' = ' + i + ';',
+            '    constructor(public label: string) {}');
+    }
+    lines.push(
+        '    method' + i + '(arg: I' + i + ', n: number): string {',
+        '        return this.label + arg.name + (n + this.value' + i + ');',
+        '    }',
+        '    select' + i + '<T extends I' + i + '>(items: T[], kind: E' + i + '): T[] {',
+        '        return items.filter(item => item.id > ' + i + ' || kind === E' + i + '.Gamma);',
+        '    }',
+        '}',
+        '',
+        'export type Either' + i + ' = I' + i + ' | C' + i + ';',
+        '',
+        'export function make' + i + '(n: number): I' + i + ' {',
+        '    return { id: n, name: "m' + i + '", tags: [] };',
+        '}',
+        '',
+        'export function use' + i + '(): number {',
+        '    var total = 0;');
+    imports.forEach(function (j) {
+        lines.push('    total += make' + j + '(' + i + ').id + new C' + j + '("m' + i + '").method' + j + '(make' + j + '(1), 2).length;');
+    });
+    packages.forEach(function (p, k) {
+        var s = (i + k) % options.packageDecls;
+        lines.push('    total += pkg' + p + '.create' + s + '({ size: ' + i + ' }).count;');
+    });
+    if (base >= 0) {
+        lines.push('    total += new C' + i + '("m' + i + '").method' + base + '(make' + base + '(2), 3).length;');
+    }
+    lines.push(
+        '    return total;',
+        '}');
+    if (withError) {
+        lines.push(
+            '',
+            'export var broken' + i + ': number = "m' + i + '";',
+            'export function loose' + i + '(x) { return x; }');
+    }
+    return lines.join('\n') + '\n';
+}
+
+// Writes the project. Returns the paths of the files the indexer would find, relative to the output
+// directory, in the order written, and for each source file the source files that import it.
+function generate(options, dir) {
+    var rand = random(options.seed);
+    var excluded = options.excluded >= 0 ? options.excluded : Math.floor(options.files / 10);
+    var written = [];
+    function write(rel, text) {
+        var file = path.join(dir, rel);
+        mkdirs(path.dirname(file));
+        fs.writeFileSync(file, text);
+        written.push(rel);
+    }
+
+    write('tsconfig.json', JSON.stringify({
+        compilerOptions: { target: 'es5', module: 'commonjs', moduleResolution: 'node' },
+        exclude: ['node_modules', 'build']
+    }, null, 4) + '\n');
+
+    for (var p = 0; p < options.packages; p++) {
+        write('node_modules/pkg' + p + '/index.d.ts', packageText(p, options.packageDecls));
+    }
+
+    var depth = [], importedBy = [];
+    for (var i = 0; i < options.files; i++) {
+        var imports = chooseImports(i, options.fanout, rand);
+        importedBy.push([]);
+        imports.forEach(function (j) {
+            importedBy[j].push(i);
+        });
+        var base = -1;
+        imports.forEach(function (j) {
+            if (depth[j] < options.depth && (base < 0 || depth[j] > depth[base])) {
+                base = j;
+            }
+        });
+        depth[i] = base < 0 ? 0 : depth[base] + 1;
+        var packages = [];
+        if (options.packages > 0) {
+            packages.push(Math.floor(rand() * options.packages));
+            var second = Math.floor(rand() * options.packages);
+            if (second !== packages[0]) packages.push(second);
+        }
+        write(sourceName(i), sourceText(i, imports, base, packages, options, rand() < options.errors));
+    }
+
+    for (var e = 0; e < excluded; e++) {
+        write('build/gen' + e + '.ts', 'export var generated' + e + ' = ' + e + ';\n');
+    }
+    return { files: written, importedBy: importedBy };
+}
+
+// The source file edited by an edit session and those that import it, directly or not
+function affectedFiles(edited, importedBy) {
+    var seen = {}, queue = [edited];
+    seen[edited] = true;
+    for (var k = 0; k < queue.length; k++) {
+        importedBy[queue[k]].forEach(function (i) {
+            if (!seen[i]) {
+                seen[i] = true;
+                queue.push(i);
+            }
+        });
+    }
+    return queue.sort(function (a, b) { return a - b; });
+}
+
+// The files in a fixed but arbitrary order
+function shuffle(items, rand) {
+    items = items.slice();
+    for (var i = items.length - 1; i > 0; i--) {
+        var j = Math.floor(rand() * (i + 1));
+        var t = items[i];
+        items[i] = items[j];
+        items[j] = t;
+    }
+    return items;
+}
+
+// Writes the requests the plugin makes on opening the project (see TSService). kind is 'cold',
+// 'warm', 'edit' or 'unordered-edit'. For the edit sessions, returns the number of
+// getDiagnosticsBatch requests it takes to check the edited file and those that import it.
+function writeSession(session, kind, options, dir, project) {
+    var files = project.files;
+    var out = fs.openSync(session, 'w');
+    var nextId = 1;
+    function request(json, text) {
+        var payload = Buffer.from(JSON.stringify(json), 'utf8');
+        var body = text == null ? null : Buffer.from(text, 'utf8');
+        var header = '0\n' + (nextId++) + ' ' + payload.length + (body ? ' ' + body.length : '') + '\n';
+        fs.writeSync(out, Buffer.concat(body ? [Buffer.from(header), payload, body] : [Buffer.from(header), payload]));
+    }
+
+    ['lib.d.ts', 'lib.es6.d.ts'].forEach(function (lib) {
+        request([null, 'setBuiltinLib', '(builtin) ' + lib], fs.readFileSync(path.join(options.libDir, lib), 'utf8'));
+    });
+    request([null, 'newProgram', 1]);
+    request([1, 'beginBulkLoad']);
+    request([1, 'addDiskFiles', files, files.map(function (rel) { return path.resolve(dir, rel); })]);
+    request([1, 'endBulkLoad']);
+    var checked = files.filter(function (rel) {
+        return !/\.json$/.test(rel) && rel.indexOf('node_modules') < 0 && rel.indexOf('typings') < 0;
+    });
+    request([1, 'getDiagnosticsKeys', checked]);
+    // updateErrors asks for diagnostics in batches, each with a time limit, and asks again for
+    // the files left out. A replay can't do that, so these batches have no time limit.
+    var batchFiles = 200;
+    function check(names) {
+        for (var i = 0; i < names.length; i += batchFiles) {
+            request([1, 'getDiagnosticsBatch', names.slice(i, i + batchFiles), 1e9]);
+        }
+    }
+    var dependentBatches;
+    if (kind === 'cold') {
+        check(checked);
+    }
+    if (kind === 'edit' || kind === 'unordered-edit') {
+        var edited = options.edit >= 0 ? options.edit : options.files - 1;
+        var text = fs.readFileSync(path.join(dir, sourceName(edited)), 'utf8');
+        request([1, 'updateFile', sourceName(edited), false], text + '// edited\n');
+        request([1, 'getDiagnosticsKeys', checked]);
+        var affected = affectedFiles(edited, project.importedBy);
+        var dependent = {};
+        dependent[edited] = true;
+        project.importedBy[edited].forEach(function (i) { dependent[i] = true; });
+        var order;
+        if (kind === 'edit') {
+            request([1, 'getImporters', [sourceName(edited)]]);
+            order = affected.filter(function (i) { return dependent[i]; })
+                .concat(affected.filter(function (i) { return !dependent[i]; }));
+        } else {
+            order = shuffle(affected, random(options.seed));
+        }
+        var last = 0;
+        order.forEach(function (i, pos) {
+            if (dependent[i]) last = pos;
+        });
+        dependentBatches = Math.floor(last / batchFiles) + 1;
+        check(order.map(sourceName));
+    }
+    fs.closeSync(out);
+    return dependentBatches;
+}
+
+function parseArgs(argv) {
+    var options = {}, names = {
+        '--files': 'files', '--fanout': 'fanout', '--depth': 'depth', '--packages': 'packages',
+        '--package-decls': 'packageDecls', '--excluded': 'excluded', '--errors': 'errors',
+        '--seed': 'seed', '--session': 'session', '--warm-session': 'warmSession', '--edit-session': 'editSession',
+        '--unordered-edit-session': 'unorderedEditSession', '--edit': 'edit', '--lib-dir': 'libDir'
+    };
+    Object.keys(defaults).forEach(function (key) { options[key] = defaults[key]; });
+    var dirs = [];
+    for (var i = 0; i < argv.length; i++) {
+        var name = names[argv[i]];
+        if (name) {
+            var value = argv[++i];
+            options[name] = typeof defaults[name] === 'number' ? Number(value) : value;
+            if (value === undefined || options[name] !== options[name]) return null;
+        } else if (argv[i].charAt(0) === '-') {
+            return null;
+        } else {
+            dirs.push(argv[i]);
+        }
+    }
+    if (dirs.length !== 1 ||
+        ((options.session || options.warmSession || options.editSession || options.unorderedEditSession) && !options.libDir) ||
+        options.edit >= options.files) return null;
+    options.dir = dirs[0];
+    return options;
+}
+
+function main() {
+    var options = parseArgs(process.argv.slice(2));
+    if (!options) {
+        console.error('usage: node genproject.js [--files n] [--fanout n] [--depth n] [--packages n] [--package-decls n]\n' +
+                      '                          [--excluded n] [--errors rate] [--seed n]\n' +
+                      '                          [--session file] [--warm-session file] [--edit-session file]\n' +
+                      '                          [--unordered-edit-session file] [--edit n]\n' +
+                      '                          [--lib-dir dir] <output dir>');
+        process.exit(2);
+    }
+    if (fs.existsSync(options.dir) && fs.readdirSync(options.dir).length) {
+        console.error(options.dir + ' is not empty');
+        process.exit(1);
+    }
+    var project = generate(options, options.dir);
+    if (options.session) {
+        writeSession(options.session, 'cold', options, options.dir, project);
+    }
+    if (options.warmSession) {
+        writeSession(options.warmSession, 'warm', options, options.dir, project);
+    }
+    if (options.editSession) {
+        console.log(options.editSession + ': dependents checked by getDiagnosticsBatch ' +
+                    writeSession(options.editSession, 'edit', options, options.dir, project));
+    }
+    if (options.unorderedEditSession) {
+        console.log(options.unorderedEditSession + ': dependents checked by getDiagnosticsBatch ' +
+                    writeSession(options.unorderedEditSession, 'unordered-edit', options, options.dir, project));
+    }
+    console.log('Wrote ' + project.files.length + ' files to ' + options.dir);
+}
+
+main();
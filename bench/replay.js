@@ -0,0 +1,250 @@
+// Plays back a session recorded by the plugin (see -Dnbts.recordSession) against a build of
+// nbts-services.js, with no IDE, and reports the latency of each kind of request.
+//
+//   node bench/replay.js [options] <nbts-services.js> <session.nbts>
+//
+// Options:
+//   --speed <n>           play back n times faster than recorded (default 1)
+//   --asap                write each request as soon as the one before it is answered
+//   --map-paths <a>=<b>   replace the path prefix a with b in requests, for files that nodejs
+//                         reads from disk when the recording was made on another machine
+//   --json                print the report as JSON, for comparing runs with a script. This also
+//                         gives the latency of each request, in the order they were made.
+//
+// A recording is the stream of requests the plugin wrote to one nodejs process. Each request is
+// preceded by a line with the milliseconds since the recording started:
+//
+//   <millis>\n<id> <length>[ <textLength>]\n<JSON>[<text>]
+//
+// Latency is measured from writing a request to reading its response, so with the default
+// pacing it includes time spent queued behind earlier requests, as in the IDE.
+
+'use strict';
+
+var childProcess = require('child_process');
+var fs = require('fs');
+var os = require('os');
+var path = require('path');
+
+function usage() {
+    console.error('usage: node replay.js [--speed n] [--asap] [--map-paths a=b] [--json] <nbts-services.js> <session.nbts>');
+    process.exit(2);
+}
+
+var options = { speed: 1, asap: false, maps: [], json: false };
+var files = [];
+for (var i = 2; i < process.argv.length; i++) {
+    var arg = process.argv[i];
+    if (arg === '--speed') {
+        options.speed = Number(process.argv[++i]);
+    } else if (arg === '--asap') {
+        options.asap = true;
+    } else if (arg === '--map-paths') {
+        var map = (process.argv[++i] || '').split('=');
+        if (map.length !== 2) usage();
+        options.maps.push(map);
+    } else if (arg === '--json') {
+        options.json = true;
+    } else if (arg.charAt(0) === '-') {
+        usage();
+    } else {
+        files.push(arg);
+    }
+}
+if (files.length !== 2 || !(options.speed > 0)) usage();
+
+// Reads a line of ASCII at pos in buf. Returns [line, position after the newline].
+function readLine(buf, pos) {
+    var nl = buf.indexOf(10, pos);
+    if (nl < 0) throw new Error('Truncated recording at byte ' + pos);
+    return [buf.toString('ascii', pos, nl), nl + 1];
+}
+
+function mapPaths(value) {
+    if (typeof value === 'string') {
+        options.maps.forEach(function (map) {
+            if (value.lastIndexOf(map[0], 0) === 0) {
+                value = map[1] + value.substring(map[0].length);
+            }
+        });
+        return value;
+    } else if (Array.isArray(value)) {
+        return value.map(mapPaths);
+    }
+    return value;
+}
+
+function loadRequests(file) {
+    var buf = fs.readFileSync(file);
+    var requests = [];
+    var pos = 0;
+    while (pos < buf.length) {
+        var line = readLine(buf, pos);
+        var time = Number(line[0]);
+        line = readLine(buf, line[1]);
+        var fields = line[0].split(' ');
+        var jsonLength = Number(fields[1]);
+        var textLength = fields.length > 2 ? Number(fields[2]) : -1;
+        pos = line[1];
+        var json = buf.slice(pos, pos + jsonLength);
+        pos += jsonLength;
+        var text = textLength >= 0 ? buf.slice(pos, pos + textLength) : null;
+        pos += Math.max(textLength, 0);
+        if (pos > buf.length) throw new Error('Truncated recording');
+
+        var request = JSON.parse(json.toString('utf8'));
+        if (options.maps.length) {
+            json = Buffer.from(JSON.stringify(mapPaths(request)), 'utf8');
+        }
+        var header = fields[0] + ' ' + json.length + (text ? ' ' + text.length : '') + '\n';
+        requests.push({
+            time: time,
+            id: fields[0],
+            method: request[1],
+            frame: Buffer.concat(text ? [Buffer.from(header), json, text] : [Buffer.from(header), json])
+        });
+    }
+    return requests;
+}
+
+function percentile(sorted, p) {
+    if (!sorted.length) return 0;
+    return sorted[Math.min(sorted.length - 1, Math.ceil(sorted.length * p / 100) - 1)];
+}
+
+function report(stats, wallMillis, peakHeap, peakRss) {
+    var methods = Object.keys(stats).map(function (method) {
+        var s = stats[method];
+        var sorted = s.latencies.slice().sort(function (a, b) { return a - b; });
+        return {
+            method: method,
+            count: sorted.length,
+            errors: s.errors,
+            cancelled: s.cancelled,
+            p50: percentile(sorted, 50),
+            p95: percentile(sorted, 95),
+            p99: percentile(sorted, 99),
+            max: sorted.length ? sorted[sorted.length - 1] : 0,
+            first: s.latencies.length ? s.latencies[0] : 0,
+            latencies: s.latencies,
+            total: sorted.reduce(function (a, b) { return a + b; }, 0)
+        };
+    }).sort(function (a, b) { return b.total - a.total; });
+
+    if (options.json) {
+        console.log(JSON.stringify({ wallMillis: wallMillis, peakHeap: peakHeap, peakRss: peakRss, methods: methods }, null, 2));
+        return;
+    }
+    function pad(s, n) { s = String(s); return s.length >= n ? s : new Array(n - s.length + 1).join(' ') + s; }
+    function ms(n) { return n.toFixed(1); }
+    console.log(pad('method', 28) + pad('count', 8) + pad('p50 ms', 10) + pad('p95 ms', 10) +
+                pad('p99 ms', 10) + pad('max ms', 10) + pad('errors', 8) + pad('cancelled', 11));
+    methods.forEach(function (m) {
+        console.log(pad(m.method, 28) + pad(m.count, 8) + pad(ms(m.p50), 10) + pad(ms(m.p95), 10) +
+                    pad(ms(m.p99), 10) + pad(ms(m.max), 10) + pad(m.errors, 8) + pad(m.cancelled, 11));
+    });
+    console.log('Wall time ' + (wallMillis / 1000).toFixed(1) + 's, peak heap reported ' +
+                (peakHeap / 1048576).toFixed(0) + 'MB' +
+                (peakRss != null ? ', peak RSS ' + (peakRss / 1048576).toFixed(0) + 'MB' : ''));
+}
+
+// The most memory nodejs has had resident, which only Linux tells us
+function readPeakRss(pid) {
+    try {
+        var match = /VmHWM:\s*(\d+) kB/.exec(fs.readFileSync('/proc/' + pid + '/status', 'ascii'));
+        return match ? Number(match[1]) * 1024 : null;
+    } catch (e) {
+        return null;
+    }
+}
+
+var requests = loadRequests(files[1]);
+var cancellationDir = fs.mkdtempSync(path.join(os.tmpdir(), 'nbts-replay-'));
+var child = childProcess.spawn(process.execPath, [files[0], cancellationDir], { stdio: ['pipe', 'pipe', 'inherit'] });
+
+var inFlight = {}; // id -> { method, start }
+var inFlightCount = 0;
+var stats = {};
+var peakHeap = 0;
+var next = 0;
+var finished = false;
+var startTime = process.hrtime();
+
+function elapsedMillis(since) {
+    var d = process.hrtime(since);
+    return d[0] * 1000 + d[1] / 1e6;
+}
+
+function writeRequest(request) {
+    inFlight[request.id] = { method: request.method, start: process.hrtime() };
+    inFlightCount++;
+    child.stdin.write(request.frame);
+}
+
+function pump() {
+    if (options.asap) {
+        if (inFlightCount === 0 && next < requests.length) {
+            writeRequest(requests[next++]);
+        }
+    } else {
+        var now = elapsedMillis(startTime);
+        while (next < requests.length && requests[next].time / options.speed <= now) {
+            writeRequest(requests[next++]);
+        }
+        if (next < requests.length) {
+            setTimeout(pump, Math.max(0, requests[next].time / options.speed - now));
+        }
+    }
+    if (next === requests.length && inFlightCount === 0 && !finished) {
+        finished = true;
+        var peakRss = readPeakRss(child.pid);
+        child.stdin.end();
+        report(stats, elapsedMillis(startTime), peakHeap, peakRss);
+    }
+}
+
+function onResponse(kind, id, json) {
+    if (kind === 'L') {
+        return;
+    } else if (kind === 'M') {
+        peakHeap = Math.max(peakHeap, Number(json));
+        return;
+    }
+    var call = inFlight[id];
+    if (!call) return;
+    delete inFlight[id];
+    inFlightCount--;
+    var s = stats[call.method] || (stats[call.method] = { latencies: [], errors: 0, cancelled: 0 });
+    s.latencies.push(elapsedMillis(call.start));
+    if (kind === 'X') s.errors++;
+    if (kind === 'C') s.cancelled++;
+    if (options.asap || next === requests.length) pump();
+}
+
+var pending = Buffer.alloc(0);
+child.stdout.on('data', function (data) {
+    pending = pending.length ? Buffer.concat([pending, data]) : data;
+    for (;;) {
+        var nl = pending.indexOf(10);
+        if (nl < 0) return;
+        var header = pending.toString('ascii', 0, nl);
+        var space = header.indexOf(' ');
+        var length = Number(header.substring(space + 1));
+        if (pending.length < nl + 1 + length) return;
+        onResponse(header.charAt(0), header.substring(1, space), pending.toString('utf8', nl + 1, nl + 1 + length));
+        pending = pending.slice(nl + 1 + length);
+    }
+});
+
+child.on('exit', function (code) {
+    try {
+        fs.readdirSync(cancellationDir).forEach(function (f) { fs.unlinkSync(path.join(cancellationDir, f)); });
+        fs.rmdirSync(cancellationDir);
+    } catch (e) {}
+    if (next < requests.length || inFlightCount > 0) {
+        console.error('nodejs exited with code ' + code + ' after ' + next + ' of ' + requests.length + ' requests');
+        process.exit(1);
+    }
+});
+
+pump();
@@ -0,0 +1,144 @@
+// Measures how nodejs copes with projects of increasing size: generates a project of each size with
+// genproject.js, replays opening it with replay.js, and prints one line per size.
+//
+//   node bench/scale.js [options] <nbts-services.js>
+//
+// Options:
+//   --sizes <n,n,...>   numbers of source files (default 1000,5000,20000)
+//   --lib-dir <dir>     lib directory of the TypeScript the plugin is built with (required)
+//   --keep <dir>        generate the projects here and leave them, instead of in a temp directory
+//   --edit <n>          the file the edit sessions change (default half the number of files)
+//   Any other genproject.js option (--fanout, --depth, --packages, ...) applies to every size.
+//
+// For each size this reports:
+//   load      the requests that add the files (setBuiltinLib to endBulkLoad), which only register
+//             them since nodejs reads files when the program is first built
+//   keys      getDiagnosticsKeys, which builds the program, parsing and resolving every file, and
+//             hashes what each file's diagnostics depend on
+//   check     getDiagnosticsKeys and every getDiagnosticsBatch together, which is what updateErrors
+//             costs when nothing is cached (a cold start)
+//   warm      the same when every file's diagnostics are cached (a restart with nothing changed)
+//   edit      getDiagnosticsKeys and checking the files whose keys changed, after saving a change
+//             to one file (by default the one halfway through, which later files import; see --edit)
+//   deps      the part of that until the edited file and the files that import it directly are
+//             checked, which updateErrors does first
+//   unord     the same when the files whose keys changed are checked in an arbitrary order, as
+//             updateErrors used to
+//   heap/RSS  the largest heap nodejs reported and its peak resident size (RSS only on Linux)
+
+'use strict';
+
+var childProcess = require('child_process');
+var fs = require('fs');
+var os = require('os');
+var path = require('path');
+
+var loadMethods = ['setBuiltinLib', 'newProgram', 'beginBulkLoad', 'addDiskFiles', 'endBulkLoad'];
+
+function usage() {
+    console.error('usage: node scale.js [--sizes n,n,...] --lib-dir dir [--keep dir] [genproject options] <nbts-services.js>');
+    process.exit(2);
+}
+
+var sizes = [1000, 5000, 20000], libDir = null, keep = null, genArgs = [], editFile = null, services = null;
+var argv = process.argv.slice(2);
+for (var i = 0; i < argv.length; i++) {
+    if (argv[i] === '--sizes') {
+        sizes = (argv[++i] || '').split(',').map(Number);
+    } else if (argv[i] === '--lib-dir') {
+        libDir = argv[++i];
+    } else if (argv[i] === '--keep') {
+        keep = argv[++i];
+    } else if (argv[i] === '--edit') {
+        editFile = argv[++i];
+    } else if (argv[i].charAt(0) === '-') {
+        genArgs.push(argv[i], argv[++i]);
+    } else if (services === null) {
+        services = argv[i];
+    } else {
+        usage();
+    }
+}
+if (!services || !libDir || sizes.some(function (n) { return !(n > 0); })) usage();
+
+function pad(s, n) { s = String(s); return s.length >= n ? s : new Array(n - s.length + 1).join(' ') + s; }
+function ms(n) { return n < 10000 ? n.toFixed(0) + 'ms' : (n / 1000).toFixed(1) + 's'; }
+function mb(n) { return n == null ? '-' : (n / 1048576).toFixed(0) + 'MB'; }
+
+function remove(file) {
+    if (fs.statSync(file).isDirectory()) {
+        fs.readdirSync(file).forEach(function (name) { remove(path.join(file, name)); });
+        fs.rmdirSync(file);
+    } else {
+        fs.unlinkSync(file);
+    }
+}
+
+// Replays a session, returning replay.js's JSON report
+function replay(session) {
+    var child = childProcess.spawnSync(process.execPath,
+        [path.join(__dirname, 'replay.js'), '--asap', '--json', services, session],
+        { stdio: ['ignore', 'pipe', 'inherit'], maxBuffer: 1 << 24 });
+    if (child.status !== 0) process.exit(1);
+    var result = JSON.parse(child.stdout.toString());
+    result.byMethod = {};
+    result.load = 0;
+    result.methods.forEach(function (m) {
+        result.byMethod[m.method] = m;
+        if (loadMethods.indexOf(m.method) >= 0) result.load += m.total;
+    });
+    return result;
+}
+
+function total(result, method) {
+    return result.byMethod[method] ? result.byMethod[method].total : 0;
+}
+
+// The time after an edit session's updateFile until its first n getDiagnosticsBatch requests were
+// answered
+function editMillis(result, n) {
+    var batches = result.byMethod.getDiagnosticsBatch ? result.byMethod.getDiagnosticsBatch.latencies : [];
+    return result.byMethod.getDiagnosticsKeys.latencies[1] + total(result, 'getImporters') +
+        batches.slice(0, n).reduce(function (a, b) { return a + b; }, 0);
+}
+
+// How many getDiagnosticsBatch requests of a session genproject.js says it takes to check the
+// dependents of the edited file
+function dependentBatches(output, session) {
+    var line = output.split('\n').filter(function (l) { return l.lastIndexOf(session + ': ', 0) === 0; })[0];
+    return Number(/(\d+)$/.exec(line)[1]);
+}
+
+var base = keep || fs.mkdtempSync(path.join(os.tmpdir(), 'nbts-scale-'));
+console.log(pad('files', 8) + pad('load', 10) + pad('keys', 10) + pad('check', 10) + pad('warm', 10) +
+            pad('edit', 10) + pad('deps', 10) + pad('unord', 10) + pad('heap', 9) + pad('RSS', 9));
+sizes.forEach(function (size) {
+    var dir = path.join(base, 'project-' + size);
+    var session = path.join(base, 'project-' + size + '.nbts');
+    var warmSession = path.join(base, 'project-' + size + '-warm.nbts');
+    var editSession = path.join(base, 'project-' + size + '-edit.nbts');
+    var unorderedSession = path.join(base, 'project-' + size + '-unordered.nbts');
+    var gen = childProcess.spawnSync(process.execPath,
+        [path.join(__dirname, 'genproject.js'), '--files', String(size), '--session', session,
+         '--warm-session', warmSession, '--edit-session', editSession, '--unordered-edit-session', unorderedSession,
+         '--edit', editFile !== null ? editFile : String(Math.floor(size / 2)), '--lib-dir', libDir].concat(genArgs, [dir]),
+        { stdio: ['ignore', 'pipe', 'inherit'] });
+    if (gen.status !== 0) process.exit(1);
+    var genOutput = gen.stdout.toString();
+
+    var cold = replay(session), warm = replay(warmSession), edit = replay(editSession);
+    var unordered = replay(unorderedSession);
+    console.log(pad(size, 8) + pad(ms(cold.load), 10) + pad(ms(total(cold, 'getDiagnosticsKeys')), 10) +
+                pad(ms(total(cold, 'getDiagnosticsKeys') + total(cold, 'getDiagnosticsBatch')), 10) +
+                pad(ms(total(warm, 'getDiagnosticsKeys')), 10) +
+                pad(ms(editMillis(edit, Infinity)), 10) +
+                pad(ms(editMillis(edit, dependentBatches(genOutput, editSession))), 10) +
+                pad(ms(editMillis(unordered, dependentBatches(genOutput, unorderedSession))), 10) +
+                pad(mb(cold.peakHeap), 9) + pad(mb(cold.peakRss), 9));
+});
+
+if (keep) {
+    console.log('Projects and sessions are in ' + keep);
+} else {
+    remove(base);
+}
@@ -0,0 +1,111 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2015 Everlaw. All rights reserved.
+ *
+ * Oracle and Java are registered trademarks of Oracle and/or its affiliates.
+ * Other names may be trademarks of their respective owners.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common
+ * Development and Distribution License("CDDL") (collectively, the
+ * "License"). You may not use this file except in compliance with the
+ * License. You can obtain a copy of the License at
+ * http://www.netbeans.org/cddl-gplv2.html
+ * or nbbuild/licenses/CDDL-GPL-2-CP. See the License for the
+ * specific language governing permissions and limitations under the
+ * License.  When distributing the software, include this License Header
+ * Notice in each file and include the License file at
+ * nbbuild/licenses/CDDL-GPL-2-CP.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the GPL Version 2 section of the License file that
+ * accompanied this code. If applicable, add the following below the
+ * License Header, with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ *
+ * If you wish your version of this file to be governed by only the CDDL
+ * or only the GPL Version 2, indicate your decision by adding
+ * "[Contributor] elects to include this software in this distribution
+ * under the [CDDL or GPL Version 2] license." If you do not indicate a
+ * single choice of license, a recipient has the option to distribute
+ * your version of this file under either the CDDL, the GPL Version 2 or
+ * to extend the choice of license to its licensees as provided above.
+ * However, if you add GPL Version 2 code and therefore, elected the GPL
+ * Version 2 license, then the option applies only if the new code is
+ * made subject to such option by the copyright holder.
+ */
+package netbeanstypescript;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Decoding responses from nodejs, for a file of each size: with the decoders the IDE uses, and
+ * into a json-simple tree for comparison. Run with -prof gc to see the allocation rates.
+ *
+ * @author jeffrey
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark {
+
+    @Param({ "small", "10k", "100k" })
+    String size;
+
+    String spans, highlights, diagnostics;
+
+    @Setup
+    public void setUp() {
+        String text = Fixtures.text(size);
+        spans = Fixtures.spansJSON(text);
+        highlights = Fixtures.highlightsJSON(text);
+        diagnostics = Fixtures.diagnosticsJSON(text);
+    }
+
+    @Benchmark
+    public Object spans() throws ParseException {
+        return TSService.spansDecoder.decode(new JSONReader(spans));
+    }
+
+    @Benchmark
+    public Object spansTree() throws ParseException {
+        return JSONValue.parseWithException(spans);
+    }
+
+    @Benchmark
+    public Object highlights() throws ParseException {
+        return TSSemanticAnalyzer.highlightsDecoder.decode(new JSONReader(highlights));
+    }
+
+    @Benchmark
+    public Object highlightsTree() throws ParseException {
+        return JSONValue.parseWithException(highlights);
+    }
+
+    @Benchmark
+    public Object diagnostics() throws ParseException {
+        return TSService.diagnosticsDecoder.decode(new JSONReader(diagnostics));
+    }
+
+    @Benchmark
+    public Object diagnosticsTree() throws ParseException {
+        return JSONValue.parseWithException(diagnostics);
+    }
+}
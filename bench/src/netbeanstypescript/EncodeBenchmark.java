@@ -0,0 +1,134 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2015 Everlaw. All rights reserved.
+ *
+ * Oracle and Java are registered trademarks of Oracle and/or its affiliates.
+ * Other names may be trademarks of their respective owners.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common
+ * Development and Distribution License("CDDL") (collectively, the
+ * "License"). You may not use this file except in compliance with the
+ * License. You can obtain a copy of the License at
+ * http://www.netbeans.org/cddl-gplv2.html
+ * or nbbuild/licenses/CDDL-GPL-2-CP. See the License for the
+ * specific language governing permissions and limitations under the
+ * License.  When distributing the software, include this License Header
+ * Notice in each file and include the License file at
+ * nbbuild/licenses/CDDL-GPL-2-CP.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the GPL Version 2 section of the License file that
+ * accompanied this code. If applicable, add the following below the
+ * License Header, with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ *
+ * If you wish your version of this file to be governed by only the CDDL
+ * or only the GPL Version 2, indicate your decision by adding
+ * "[Contributor] elects to include this software in this distribution
+ * under the [CDDL or GPL Version 2] license." If you do not indicate a
+ * single choice of license, a recipient has the option to distribute
+ * your version of this file under either the CDDL, the GPL Version 2 or
+ * to extend the choice of license to its licensees as provided above.
+ * However, if you add GPL Version 2 code and therefore, elected the GPL
+ * Version 2 license, then the option applies only if the new code is
+ * made subject to such option by the copyright holder.
+ */
+package netbeanstypescript;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding requests to nodejs: escaping text as a JSON string, and a whole updateFile request
+ * framed as TSService writes it. For comparison, escapedRequest encodes the request the way it
+ * was before text was sent as raw UTF-8: inside the JSON, with every non-ASCII character escaped.
+ * The request benchmarks also report the bytes each request takes.
+ *
+ * @author jeffrey
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodeBenchmark {
+
+    @Param({ "ascii", "cjk" })
+    String fixture;
+
+    @Param({ "small", "10k", "100k" })
+    String size;
+
+    String text;
+
+    /** Bytes written to nodejs for one request, reported as a secondary result. */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class RequestBytes {
+        public long bytes;
+    }
+
+    @Setup
+    public void setUp() {
+        text = Fixtures.text(fixture, size);
+    }
+
+    @Benchmark
+    public StringBuilder stringToJS() {
+        StringBuilder sb = new StringBuilder(text.length() + 16);
+        TSService.stringToJS(sb, text);
+        return sb;
+    }
+
+    @Benchmark
+    public byte[][] request(RequestBytes counter) {
+        byte[][] frame = TSService.encodeFrame(1, 1, "updateFile", "src/app.ts", false, text);
+        counter.bytes = frame[0].length + frame[1].length + frame[2].length;
+        return frame;
+    }
+
+    @Benchmark
+    public byte[] escapedRequest(RequestBytes counter) {
+        StringBuilder sb = new StringBuilder(text.length() + 64).append("[1,\"updateFile\",\"src/app.ts\",false,");
+        escapeAll(sb, text);
+        byte[] payload = sb.append(']').toString().getBytes(StandardCharsets.UTF_8);
+        byte[] header = ("1 " + payload.length + "\n").getBytes(StandardCharsets.US_ASCII);
+        counter.bytes = header.length + payload.length;
+        return payload;
+    }
+
+    // The old stringToJS, which escaped everything outside printable ASCII
+    private static void escapeAll(StringBuilder sb, CharSequence s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x20 || c > 0x7E) {
+                sb.append("\\u");
+                for (int j = 12; j >= 0; j -= 4) {
+                    sb.append("0123456789ABCDEF".charAt((c >> j) & 0x0F));
+                }
+            } else {
+                if (c == '\\' || c == '"') {
+                    sb.append('\\');
+                }
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2015 Everlaw. All rights reserved.
+ *
+ * Oracle and Java are registered trademarks of Oracle and/or its affiliates.
+ * Other names may be trademarks of their respective owners.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common
+ * Development and Distribution License("CDDL") (collectively, the
+ * "License"). You may not use this file except in compliance with the
+ * License. You can obtain a copy of the License at
+ * http://www.netbeans.org/cddl-gplv2.html
+ * or nbbuild/licenses/CDDL-GPL-2-CP. See the License for the
+ * specific language governing permissions and limitations under the
+ * License.  When distributing the software, include this License Header
+ * Notice in each file and include the License file at
+ * nbbuild/licenses/CDDL-GPL-2-CP.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the GPL Version 2 section of the License file that
+ * accompanied this code. If applicable, add the following below the
+ * License Header, with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ *
+ * If you wish your version of this file to be governed by only the CDDL
+ * or only the GPL Version 2, indicate your decision by adding
+ * "[Contributor] elects to include this software in this distribution
+ * under the [CDDL or GPL Version 2] license." If you do not indicate a
+ * single choice of license, a recipient has the option to distribute
+ * your version of this file under either the CDDL, the GPL Version 2 or
+ * to extend the choice of license to its licensees as provided above.
+ * However, if you add GPL Version 2 code and therefore, elected the GPL
+ * Version 2 license, then the option applies only if the new code is
+ * made subject to such option by the copyright holder.
+ */
+package netbeanstypescript;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Fixture files for the benchmarks, and responses shaped like the ones nodejs sends for them.
+ * The larger sizes repeat a sample file under numbered namespaces: fixtures/sample.ts, which is
+ * ASCII, or fixtures/sample-cjk.ts, whose comments, strings and identifiers are mostly Japanese
+ * and Chinese with tables in box-drawing characters.
+ *
+ * @author jeffrey
+ */
+final class Fixtures {
+
+    private Fixtures() {}
+
+    /**
+     * @param size "small" for the sample file itself, or "10k" or "100k" lines
+     */
+    static String text(String size) {
+        return text("ascii", size);
+    }
+
+    /**
+     * @param fixture "ascii" for fixtures/sample.ts or "cjk" for fixtures/sample-cjk.ts
+     * @param size "small" for the sample file itself, or "10k" or "100k" lines
+     */
+    static String text(String fixture, String size) {
+        String sample;
+        switch (fixture) {
+            case "ascii": sample = sample("/fixtures/sample.ts"); break;
+            case "cjk": sample = sample("/fixtures/sample-cjk.ts"); break;
+            default: throw new IllegalArgumentException(fixture);
+        }
+        int lines;
+        switch (size) {
+            case "small": return sample;
+            case "10k": lines = 10000; break;
+            case "100k": lines = 100000; break;
+            default: throw new IllegalArgumentException(size);
+        }
+        StringBuilder sb = new StringBuilder();
+        int count = 0;
+        for (int i = 0; count < lines; i++) {
+            String copy = sample.replace("app.", "app" + i + ".");
+            sb.append(copy);
+            count += copy.split("\n", -1).length - 1;
+        }
+        return sb.toString();
+    }
+
+    private static String sample(String resource) {
+        try (InputStream in = Fixtures.class.getResourceAsStream(resource)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                out.write(buf, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8).replace("\r\n", "\n");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static final Pattern identifier = Pattern.compile("\\b[A-Za-z_$][\\w$]*\\b");
+
+    // Start and end of every identifier and keyword, as a stand-in for occurrences and folds
+    static int[] spans(String text) {
+        List<Integer> spans = new ArrayList<>();
+        Matcher m = identifier.matcher(text);
+        while (m.find()) {
+            spans.add(m.start());
+            spans.add(m.end());
+        }
+        int[] array = new int[spans.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = spans.get(i);
+        }
+        return array;
+    }
+
+    static String spansJSON(String text) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int span: spans(text)) {
+            sb.append(span).append(',');
+        }
+        sb.setLength(sb.length() - 1);
+        return sb.append(']').toString();
+    }
+
+    /** A getSemanticHighlights response highlighting every identifier. */
+    static String highlightsJSON(String text) {
+        int[] spans = spans(text);
+        StringBuilder starts = new StringBuilder(), lengths = new StringBuilder(), bits = new StringBuilder();
+        int prev = 0;
+        for (int i = 0; i < spans.length; i += 2) {
+            String sep = i == 0 ? "" : ",";
+            starts.append(sep).append(spans[i] - prev);
+            lengths.append(sep).append(spans[i + 1] - spans[i]);
+            // a few common combinations, as in real files
+            bits.append(sep).append(1 << (i / 2 % 5) | (i % 14 == 0 ? 1 << 5 : 0));
+            prev = spans[i];
+        }
+        return "{\"attrs\":[\"CLASS\",\"METHOD\",\"FIELD\",\"LOCAL_VARIABLE\",\"PARAMETER\",\"STATIC\"],"
+                + "\"starts\":[" + starts + "],\"lengths\":[" + lengths + "],\"bits\":[" + bits + "]}";
+    }
+
+    /** A getDiagnostics response with one error every 20 lines. */
+    static String diagnosticsJSON(String text) {
+        StringBuilder sb = new StringBuilder("{\"errs\":[");
+        int line = 1;
+        for (int pos = 0; pos >= 0; pos = text.indexOf('\n', pos + 1), line++) {
+            if (line % 20 == 0) {
+                if (sb.charAt(sb.length() - 1) != '[') sb.append(',');
+                sb.append("{\"line\":").append(line).append(",\"start\":").append(pos + 1)
+                  .append(",\"length\":8,\"category\":").append(line % 3 == 0 ? 0 : 1)
+                  .append(",\"code\":2304,\"messageText\":\"Cannot find name 'thing")
+                  .append(line).append("'.\"}");
+            }
+        }
+        return sb.append("],\"metaError\":null}").toString();
+    }
+
+    private static final Pattern declaration = Pattern.compile(
+            "\\b(namespace|class|interface|enum|function)\\s+([\\w.]+)"
+            + "|^\\s+(?:get |set )?(?!(?:if|for|while|switch|return|catch)\\b)(\\w+)\\s*\\(",
+            Pattern.MULTILINE);
+
+    /** A getStructureItems response: the declarations nested by braces. */
+    @SuppressWarnings("unchecked")
+    static JSONArray structureItems(String text) {
+        JSONArray top = new JSONArray();
+        ArrayDeque<JSONArray> stack = new ArrayDeque<>();
+        ArrayDeque<Integer> depths = new ArrayDeque<>();
+        stack.push(top);
+        depths.push(-1);
+        int depth = 0, pos = 0;
+        Matcher m = declaration.matcher(text);
+        while (m.find()) {
+            for (; pos < m.start(); pos++) {
+                char c = text.charAt(pos);
+                if (c == '{') {
+                    depth++;
+                } else if (c == '}') {
+                    depth--;
+                }
+            }
+            // Declarations at this depth or deeper have ended
+            while (depths.peek() >= depth) {
+                stack.pop();
+                depths.pop();
+            }
+            JSONObject item = new JSONObject();
+            item.put("name", m.group(2) != null ? m.group(2) : m.group(3));
+            item.put("kind", m.group(1) == null ? "method"
+                    : m.group(1).equals("namespace") ? "module" : m.group(1));
+            item.put("kindModifiers", "export");
+            item.put("start", m.start());
+            item.put("end", m.end());
+            JSONArray children = new JSONArray();
+            item.put("children", children);
+            stack.peek().add(item);
+            stack.push(children);
+            depths.push(depth);
+        }
+        return top;
+    }
+}
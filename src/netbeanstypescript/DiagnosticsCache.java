@@ -0,0 +1,229 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2015 Everlaw. All rights reserved.
+ *
+ * Oracle and Java are registered trademarks of Oracle and/or its affiliates.
+ * Other names may be trademarks of their respective owners.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common
+ * Development and Distribution License("CDDL") (collectively, the
+ * "License"). You may not use this file except in compliance with the
+ * License. You can obtain a copy of the License at
+ * http://www.netbeans.org/cddl-gplv2.html
+ * or nbbuild/licenses/CDDL-GPL-2-CP. See the License for the
+ * specific language governing permissions and limitations under the
+ * License.  When distributing the software, include this License Header
+ * Notice in each file and include the License file at
+ * nbbuild/licenses/CDDL-GPL-2-CP.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the GPL Version 2 section of the License file that
+ * accompanied this code. If applicable, add the following below the
+ * License Header, with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ *
+ * If you wish your version of this file to be governed by only the CDDL
+ * or only the GPL Version 2, indicate your decision by adding
+ * "[Contributor] elects to include this software in this distribution
+ * under the [CDDL or GPL Version 2] license." If you do not indicate a
+ * single choice of license, a recipient has the option to distribute
+ * your version of this file under either the CDDL, the GPL Version 2 or
+ * to extend the choice of license to its licensees as provided above.
+ * However, if you add GPL Version 2 code and therefore, elected the GPL
+ * Version 2 license, then the option applies only if the new code is
+ * made subject to such option by the copyright holder.
+ */
+package netbeanstypescript;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.logging.Level;
+import org.openide.modules.Places;
+
+/**
+ * The diagnostics of each file of a source root as last checked, saved under the NetBeans cache
+ * directory so that after a restart a file is only checked again if its key has changed. Keys come
+ * from getDiagnosticsKeys in nodejs, and change whenever anything the diagnostics depend on does.
+ *
+ * @author jeffrey
+ */
+final class DiagnosticsCache {
+
+    // Written at the start of the file; change it when the format changes
+    private static final int FORMAT = 1;
+
+    private static final class Entry {
+        final String key;
+        final TSService.Diagnostics diags;
+
+        Entry(String key, TSService.Diagnostics diags) {
+            this.key = key;
+            this.diags = diags;
+        }
+    }
+
+    private final URL rootURL;
+    private final File file;
+    // Guarded by this, as is everything below
+    private final Map<String, Entry> entries = new HashMap<>();
+    private boolean changed;
+
+    private DiagnosticsCache(URL rootURL, File file) {
+        this.rootURL = rootURL;
+        this.file = file;
+    }
+
+    /**
+     * Reads the cache of a source root, or starts an empty one if it has none or it can't be read.
+     */
+    static DiagnosticsCache load(URL rootURL) {
+        File dir = Places.getCacheSubdirectory("netbeanstypescript/diagnostics");
+        String name = rootURL.toString();
+        // Named by hash code before, which let roots overwrite each other's cache
+        new File(dir, Integer.toHexString(name.hashCode()) + ".bin").delete();
+        DiagnosticsCache cache = new DiagnosticsCache(rootURL, new File(dir, sha1(name) + ".bin"));
+        if (! cache.file.isFile()) {
+            return cache;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(cache.file.toPath())))) {
+            // The root's URL is saved too, and checked in case it is a different root after all
+            long limit = cache.file.length();
+            if (in.readInt() != FORMAT || ! name.equals(readString(in, limit))) {
+                return cache;
+            }
+            for (int n = in.readInt(); n > 0; n--) {
+                String relPath = readString(in, limit);
+                String key = readString(in, limit);
+                if (relPath == null || key == null) {
+                    throw new IOException("Damaged entry");
+                }
+                TSService.Diagnostics diags = new TSService.Diagnostics();
+                for (int errCount = in.readInt(); errCount > 0; errCount--) {
+                    TSService.Diagnostic err = new TSService.Diagnostic();
+                    err.line = in.readInt();
+                    err.start = in.readInt();
+                    err.length = in.readInt();
+                    err.category = in.readInt();
+                    err.code = in.readInt();
+                    err.messageText = readString(in, limit);
+                    diags.errs.add(err);
+                }
+                cache.entries.put(relPath, new Entry(key, diags));
+            }
+        } catch (IOException e) {
+            TSService.log.log(Level.INFO, "Could not read diagnostics cache " + cache.file, e);
+            cache.entries.clear();
+        }
+        return cache;
+    }
+
+    /** The diagnostics saved for a file, if they were saved under the given key. */
+    synchronized TSService.Diagnostics get(String relPath, String key) {
+        Entry entry = entries.get(relPath);
+        return entry != null && entry.key.equals(key) ? entry.diags : null;
+    }
+
+    /**
+     * Saves the diagnostics of a file. Results with a metaError are not saved, since they don't
+     * come from checking the file normally.
+     */
+    synchronized void put(String relPath, String key, TSService.Diagnostics diags) {
+        if (diags.metaError == null) {
+            entries.put(relPath, new Entry(key, diags));
+            changed = true;
+        }
+    }
+
+    /** Forgets the files not in the given ones, such as deleted files. */
+    synchronized void retainAll(Collection<String> relPaths) {
+        changed |= entries.keySet().retainAll(new HashSet<>(relPaths));
+    }
+
+    /**
+     * Writes the cache to disk if it has changed. The file is written under a temporary name and
+     * then moved into place, so a crash part way through leaves the old cache intact.
+     */
+    synchronized void save() {
+        if (! changed) {
+            return;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp.toPath())))) {
+                out.writeInt(FORMAT);
+                writeString(out, rootURL.toString());
+                out.writeInt(entries.size());
+                for (Map.Entry<String, Entry> e: entries.entrySet()) {
+                    writeString(out, e.getKey());
+                    writeString(out, e.getValue().key);
+                    out.writeInt(e.getValue().diags.errs.size());
+                    for (TSService.Diagnostic err: e.getValue().diags.errs) {
+                        out.writeInt(err.line);
+                        out.writeInt(err.start);
+                        out.writeInt(err.length);
+                        out.writeInt(err.category);
+                        out.writeInt(err.code);
+                        writeString(out, err.messageText);
+                    }
+                }
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            changed = false;
+        } catch (IOException e) {
+            TSService.log.log(Level.INFO, "Could not write diagnostics cache " + file, e);
+        }
+    }
+
+    private static String sha1(String s) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(s.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b: digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every Java platform has SHA-1
+        }
+    }
+
+    // Unlike DataOutput.writeUTF, not limited to 64K bytes, and allows null
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    // The limit is the size of the file, so a damaged one can't make us allocate a huge array
+    private static String readString(DataInputStream in, long limit) throws IOException {
+        int length = in.readInt();
+        if (length == -1) {
+            return null;
+        } else if (length < 0 || length > limit) {
+            throw new IOException("Bad string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
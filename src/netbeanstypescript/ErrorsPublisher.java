@@ -0,0 +1,154 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2015 Everlaw. All rights reserved.
+ *
+ * Oracle and Java are registered trademarks of Oracle and/or its affiliates.
+ * Other names may be trademarks of their respective owners.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common
+ * Development and Distribution License("CDDL") (collectively, the
+ * "License"). You may not use this file except in compliance with the
+ * License. You can obtain a copy of the License at
+ * http://www.netbeans.org/cddl-gplv2.html
+ * or nbbuild/licenses/CDDL-GPL-2-CP. See the License for the
+ * specific language governing permissions and limitations under the
+ * License.  When distributing the software, include this License Header
+ * Notice in each file and include the License file at
+ * nbbuild/licenses/CDDL-GPL-2-CP.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the GPL Version 2 section of the License file that
+ * accompanied this code. If applicable, add the following below the
+ * License Header, with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ *
+ * If you wish your version of this file to be governed by only the CDDL
+ * or only the GPL Version 2, indicate your decision by adding
+ * "[Contributor] elects to include this software in this distribution
+ * under the [CDDL or GPL Version 2] license." If you do not indicate a
+ * single choice of license, a recipient has the option to distribute
+ * your version of this file under either the CDDL, the GPL Version 2 or
+ * to extend the choice of license to its licensees as provided above.
+ * However, if you add GPL Version 2 code and therefore, elected the GPL
+ * Version 2 license, then the option applies only if the new code is
+ * made subject to such option by the copyright holder.
+ */
+package netbeanstypescript;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.netbeans.modules.parsing.spi.indexing.ErrorsCache;
+import org.netbeans.modules.parsing.spi.indexing.Indexable;
+import org.openide.util.RequestProcessor;
+
+/**
+ * Gives a source root's diagnostics to ErrorsCache from a task of its own, so that updateErrors
+ * doesn't hold the program's lock while ErrorsCache updates its index. Diagnostics for a file that
+ * come before the task has got to the previous ones replace them, and diagnostics that are the
+ * same as those last given for the file are skipped.
+ *
+ * @author jeffrey
+ */
+final class ErrorsPublisher {
+
+    // One thread, so each root's diagnostics are published in the order they were checked
+    private static final RequestProcessor RP = new RequestProcessor("TSService errors", 1);
+
+    private static final class Pending {
+        final Indexable indexable;
+        final TSService.Diagnostics diags;
+
+        Pending(Indexable indexable, TSService.Diagnostics diags) {
+            this.indexable = indexable;
+            this.diags = diags;
+        }
+    }
+
+    private final URL rootURL;
+    // By relative path. Guarded by this.
+    private Map<String, Pending> pending = new LinkedHashMap<>();
+    // What ErrorsCache was last given for each file. Guarded by this.
+    private final Map<String, List<TSService.Diagnostic>> published = new HashMap<>();
+    // Files forgotten since drain took its current batch, which it must not publish. Guarded by this.
+    private final Set<String> removed = new HashSet<>();
+    private final RequestProcessor.Task task = RP.create(new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    });
+
+    ErrorsPublisher(URL rootURL) {
+        this.rootURL = rootURL;
+    }
+
+    void publish(Indexable indexable, TSService.Diagnostics diags) {
+        synchronized (this) {
+            pending.put(indexable.getRelativePath(), new Pending(indexable, diags));
+            removed.remove(indexable.getRelativePath());
+        }
+        task.schedule(0);
+    }
+
+    /**
+     * Forgets a removed file: drops its diagnostics if they are still waiting, and what was
+     * published for it, so that it is published again if it comes back.
+     */
+    synchronized void forget(String relPath) {
+        pending.remove(relPath);
+        published.remove(relPath);
+        removed.add(relPath);
+    }
+
+    private void drain() {
+        for (;;) {
+            Map<String, Pending> batch;
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                batch = pending;
+                pending = new LinkedHashMap<>();
+                removed.clear();
+            }
+            for (Map.Entry<String, Pending> entry: batch.entrySet()) {
+                List<TSService.Diagnostic> errs = entry.getValue().diags.errs;
+                synchronized (this) {
+                    if (removed.contains(entry.getKey()) || sameErrors(published.get(entry.getKey()), errs)) {
+                        continue;
+                    }
+                }
+                ErrorsCache.setErrors(rootURL, entry.getValue().indexable, errs, TSService.errorConvertor);
+                synchronized (this) {
+                    // Unless it was forgotten meanwhile
+                    if (! removed.contains(entry.getKey())) {
+                        published.put(entry.getKey(), new ArrayList<>(errs));
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean sameErrors(List<TSService.Diagnostic> a, List<TSService.Diagnostic> b) {
+        if (a == null || a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            TSService.Diagnostic x = a.get(i), y = b.get(i);
+            if (x.line != y.line || x.start != y.start || x.length != y.length
+                    || x.category != y.category || x.code != y.code
+                    || ! (x.messageText == null ? y.messageText == null : x.messageText.equals(y.messageText))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2015 Everlaw. All rights reserved.
+ *
+ * Oracle and Java are registered trademarks of Oracle and/or its affiliates.
+ * Other names may be trademarks of their respective owners.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common
+ * Development and Distribution License("CDDL") (collectively, the
+ * "License"). You may not use this file except in compliance with the
+ * License. You can obtain a copy of the License at
+ * http://www.netbeans.org/cddl-gplv2.html
+ * or nbbuild/licenses/CDDL-GPL-2-CP. See the License for the
+ * specific language governing permissions and limitations under the
+ * License.  When distributing the software, include this License Header
+ * Notice in each file and include the License file at
+ * nbbuild/licenses/CDDL-GPL-2-CP.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the GPL Version 2 section of the License file that
+ * accompanied this code. If applicable, add the following below the
+ * License Header, with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ *
+ * If you wish your version of this file to be governed by only the CDDL
+ * or only the GPL Version 2, indicate your decision by adding
+ * "[Contributor] elects to include this software in this distribution
+ * under the [CDDL or GPL Version 2] license." If you do not indicate a
+ * single choice of license, a recipient has the option to distribute
+ * your version of this file under either the CDDL, the GPL Version 2 or
+ * to extend the choice of license to its licensees as provided above.
+ * However, if you add GPL Version 2 code and therefore, elected the GPL
+ * Version 2 license, then the option applies only if the new code is
+ * made subject to such option by the copyright holder.
+ */
+package netbeanstypescript;
+
+import java.util.Arrays;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Reads JSON one token at a time, so that a response can be decoded straight into the structure
+ * its caller wants instead of into a tree of JSONObjects and JSONArrays first.
+ *
+ * Within an array or object, call {@link #hasNext} before each element; it consumes the comma.
+ *
+ * @author jeffrey
+ */
+final class JSONReader {
+
+    private final String s;
+    private int pos;
+
+    JSONReader(String s) {
+        this.s = s;
+    }
+
+    private char peek() throws ParseException {
+        while (pos < s.length()) {
+            char c = s.charAt(pos);
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return c;
+            }
+            pos++;
+        }
+        throw new ParseException(pos, ParseException.ERROR_UNEXPECTED_EXCEPTION, null);
+    }
+
+    private void expect(char c) throws ParseException {
+        if (peek() != c) {
+            throw new ParseException(pos, ParseException.ERROR_UNEXPECTED_CHAR, s.charAt(pos));
+        }
+        pos++;
+    }
+
+    /** Checks that nothing but whitespace is left after the value just read. */
+    void endOfInput() throws ParseException {
+        for (; pos < s.length(); pos++) {
+            char c = s.charAt(pos);
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                throw new ParseException(pos, ParseException.ERROR_UNEXPECTED_CHAR, c);
+            }
+        }
+    }
+
+    void beginArray() throws ParseException { expect('['); }
+    void endArray() throws ParseException { expect(']'); }
+    void beginObject() throws ParseException { expect('{'); }
+    void endObject() throws ParseException { expect('}'); }
+
+    boolean hasNext() throws ParseException {
+        char c = peek();
+        if (c == ',') {
+            pos++;
+            c = peek();
+        }
+        return c != ']' && c != '}';
+    }
+
+    String nextName() throws ParseException {
+        String name = nextString();
+        expect(':');
+        return name;
+    }
+
+    /** Consumes a null if there is one. */
+    boolean nextNull() throws ParseException {
+        if (peek() == 'n' && s.startsWith("null", pos)) {
+            pos += 4;
+            return true;
+        }
+        return false;
+    }
+
+    boolean nextBoolean() throws ParseException {
+        if (peek() == 't' && s.startsWith("true", pos)) {
+            pos += 4;
+            return true;
+        } else if (s.startsWith("false", pos)) {
+            pos += 5;
+            return false;
+        }
+        throw new ParseException(pos, ParseException.ERROR_UNEXPECTED_CHAR, s.charAt(pos));
+    }
+
+    int nextInt() throws ParseException {
+        long l = nextLong();
+        if (l != (int) l) {
+            throw new ParseException(pos, ParseException.ERROR_UNEXPECTED_TOKEN, l);
+        }
+        return (int) l;
+    }
+
+    int[] nextIntArray() throws ParseException {
+        int[] arr = new int[16];
+        int n = 0;
+        beginArray();
+        while (hasNext()) {
+            if (n == arr.length) {
+                arr = Arrays.copyOf(arr, n * 2);
+            }
+            arr[n++] = nextInt();
+        }
+        endArray();
+        return n == arr.length ? arr : Arrays.copyOf(arr, n);
+    }
+
+    long nextLong() throws ParseException {
+        Number n = nextNumber();
+        return n instanceof Long ? (Long) n : n.longValue();
+    }
+
+    private Number nextNumber() throws ParseException {
+        peek();
+        int start = pos;
+        boolean negative = pos < s.length() && s.charAt(pos) == '-';
+        if (negative) pos++;
+        long value = 0;
+        int digits = 0;
+        char c;
+        while (pos < s.length() && (c = s.charAt(pos)) >= '0' && c <= '9' && digits < 18) {
+            value = value * 10 + (c - '0');
+            pos++;
+            digits++;
+        }
+        if (pos < s.length() && ((c = s.charAt(pos)) == '.' || c == 'e' || c == 'E' || (c >= '0' && c <= '9'))) {
+            // Fractions, exponents and huge integers are rare enough to take the slow path
+            while (pos < s.length() && "+-.eE0123456789".indexOf(s.charAt(pos)) >= 0) {
+                pos++;
+            }
+            return Double.valueOf(s.substring(start, pos));
+        }
+        if (digits == 0) {
+            throw new ParseException(start, ParseException.ERROR_UNEXPECTED_CHAR, s.charAt(start));
+        }
+        return negative ? -value : value;
+    }
+
+    String nextString() throws ParseException {
+        expect('"');
+        int start = pos;
+        // Strings without escapes are just a substring
+        while (pos < s.length()) {
+            char c = s.charAt(pos);
+            if (c == '"') {
+                return s.substring(start, pos++);
+            } else if (c == '\\') {
+                break;
+            }
+            pos++;
+        }
+        StringBuilder sb = new StringBuilder().append(s, start, pos);
+        while (pos < s.length()) {
+            char c = s.charAt(pos++);
+            if (c == '"') {
+                return sb.toString();
+            } else if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            if (pos >= s.length()) break;
+            c = s.charAt(pos++);
+            switch (c) {
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'n': sb.append('\n'); break;
+                case 'r': sb.append('\r'); break;
+                case 't': sb.append('\t'); break;
+                case 'u':
+                    if (pos + 4 > s.length()) {
+                        throw new ParseException(pos, ParseException.ERROR_UNEXPECTED_EXCEPTION, null);
+                    }
+                    try {
+                        sb.append((char) Integer.parseInt(s.substring(pos, pos + 4), 16));
+                    } catch (NumberFormatException e) {
+                        throw new ParseException(pos, ParseException.ERROR_UNEXPECTED_CHAR, s.charAt(pos));
+                    }
+                    pos += 4;
+                    break;
+                default: sb.append(c); // '"', '\\' and '/'
+            }
+        }
+        throw new ParseException(pos, ParseException.ERROR_UNEXPECTED_EXCEPTION, null);
+    }
+
+    /** Reads the next value the way JSONValue.parse does, for parts of a response that are passed on as is. */
+    Object nextValue() throws ParseException {
+        switch (peek()) {
+            case '{':
+                JSONObject obj = new JSONObject();
+                beginObject();
+                while (hasNext()) {
+                    String name = nextName();
+                    obj.put(name, nextValue());
+                }
+                endObject();
+                return obj;
+            case '[':
+                JSONArray arr = new JSONArray();
+                beginArray();
+                while (hasNext()) {
+                    arr.add(nextValue());
+                }
+                endArray();
+                return arr;
+            case '"':
+                return nextString();
+            case 't': case 'f':
+                return nextBoolean();
+            case 'n':
+                if (nextNull()) return null;
+                // fall through
+            default:
+                return nextNumber();
+        }
+    }
+
+    void skipValue() throws ParseException {
+        switch (peek()) {
+            case '{':
+                beginObject();
+                while (hasNext()) {
+                    nextName();
+                    skipValue();
+                }
+                endObject();
+                break;
+            case '[':
+                beginArray();
+                while (hasNext()) {
+                    skipValue();
+                }
+                endArray();
+                break;
+            case '"':
+                nextString();
+                break;
+            default:
+                nextValue();
+        }
+    }
+}
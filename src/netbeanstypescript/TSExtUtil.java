@@ -227,34 +227,36 @@ public class TSExtUtil {
             if (!virtualPath.isEmpty()) {
                 virtualPath = virtualPath + '/';
             }
+            TSService.FileBatch batch = new TSService.FileBatch(false);
             for (Map.Entry<String, FileObject> fileEntry : extRelPaths.entrySet()) {
                 String path = virtualPath + fileEntry.getValue().getNameExt();
                 if (fileEntry.getValue().isFolder()) {
-                    recursivelyAddFiles(path, fileEntry.getValue());
+                    recursivelyAddFiles(batch, path, fileEntry.getValue());
                 } else if (!extFiles.containsKey(path)) {
                     Snapshot ss = TSCONFIG_FILENAME.equals(path) ? adjustTsConfigPaths(virtualPath) : Source.create(fileEntry.getValue()).createSnapshot();
 //                    LOGGER.info(ss.getText().toString());
                     LOGGER.log(Level.FINER, "Adding virtual file: {0} => {1}", new Object[]{path, fileEntry.getValue().getPath()});
 //                    LOGGER.info(ss.getText().toString());
-                    TSService.addExternalFile(ss, path, context);
+                    batch.addExternal(ss, path);
                     extFiles.put(path, fileEntry.getValue());
                 }
             }
+            TSService.addFiles(batch, context);
         }
     }
 
-    private void recursivelyAddFiles(String virtualFolder, FileObject dir) {
+    private void recursivelyAddFiles(TSService.FileBatch batch, String virtualFolder, FileObject dir) {
         if (!dir.isFolder()) {
             return;
         }
         for (FileObject child : dir.getChildren()) {
             String path = virtualFolder + '/' + child.getNameExt();
             if (child.isFolder()) {
-                recursivelyAddFiles(path, child);
+                recursivelyAddFiles(batch, path, child);
             } else if ("text/typescript".equals(FileUtil.getMIMEType(child))) {
                 if (!extFiles.containsKey(path)) {
                     LOGGER.log(Level.FINER, "Adding virtual file: {0} => {1}", new Object[]{path, child.getPath()});
-                    TSService.addExternalFile(Source.create(child).createSnapshot(), path, context);
+                    batch.addExternal(child, path);
                     extFiles.put(path, child);
                 }
             }
@@ -44,6 +44,7 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -54,7 +55,6 @@ import org.json.simple.JSONObject;
 import org.netbeans.api.project.FileOwnerQuery;
 import org.netbeans.api.project.Project;
 import org.netbeans.api.project.ProjectUtils;
-import org.netbeans.modules.parsing.api.Source;
 import org.netbeans.modules.parsing.spi.indexing.Context;
 import org.netbeans.modules.parsing.spi.indexing.CustomIndexer;
 import org.netbeans.modules.parsing.spi.indexing.CustomIndexerFactory;
@@ -106,18 +106,26 @@ public class TSIndexerFactory extends CustomIndexerFactory {
                 if (context.isAllFilesIndexing()) {
                     extUtil.addExternalFiles();
                 }
+                long t = System.nanoTime();
+                TSService.FileBatch batch = new TSService.FileBatch(context.checkForEditorModifications());
+                List<FileObject> toCompile = new ArrayList<>();
                 for (Indexable indxbl: files) {
                     FileObject fo = context.getRoot().getFileObject(indxbl.getRelativePath());
                     if (fo == null) continue;
                     if ("text/typescript".equals(FileUtil.getMIMEType(fo))) {
-                        TSService.addFile(Source.create(fo).createSnapshot(), indxbl, context);
+                        batch.add(fo, indxbl);
                         if (! context.isAllFilesIndexing() && ! context.checkForEditorModifications()) {
-                            compileIfEnabled(context.getRoot(), fo);
+                            toCompile.add(fo);
                         }
                     } else if (fo.getNameExt().equals("tsconfig.json")) {
-                        TSService.addFile(Source.create(fo).createSnapshot(), indxbl, context);
+                        batch.add(fo, indxbl);
                     }
                 }
+                TSService.addFiles(batch, context);
+                TSMetrics.recordIndexing(context.getRootURI(), batch.relPaths.size(), System.nanoTime() - t);
+                for (FileObject fo: toCompile) {
+                    compileIfEnabled(context.getRoot(), fo);
+                }
             }
         };
     }
@@ -0,0 +1,324 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2015 Everlaw. All rights reserved.
+ *
+ * Oracle and Java are registered trademarks of Oracle and/or its affiliates.
+ * Other names may be trademarks of their respective owners.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common
+ * Development and Distribution License("CDDL") (collectively, the
+ * "License"). You may not use this file except in compliance with the
+ * License. You can obtain a copy of the License at
+ * http://www.netbeans.org/cddl-gplv2.html
+ * or nbbuild/licenses/CDDL-GPL-2-CP. See the License for the
+ * specific language governing permissions and limitations under the
+ * License.  When distributing the software, include this License Header
+ * Notice in each file and include the License file at
+ * nbbuild/licenses/CDDL-GPL-2-CP.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the GPL Version 2 section of the License file that
+ * accompanied this code. If applicable, add the following below the
+ * License Header, with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ *
+ * If you wish your version of this file to be governed by only the CDDL
+ * or only the GPL Version 2, indicate your decision by adding
+ * "[Contributor] elects to include this software in this distribution
+ * under the [CDDL or GPL Version 2] license." If you do not indicate a
+ * single choice of license, a recipient has the option to distribute
+ * your version of this file under either the CDDL, the GPL Version 2 or
+ * to extend the choice of license to its licensees as provided above.
+ * However, if you add GPL Version 2 code and therefore, elected the GPL
+ * Version 2 license, then the option applies only if the new code is
+ * made subject to such option by the copyright holder.
+ */
+package netbeanstypescript;
+
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Latency and payload statistics of the requests made to nodejs, by language service method and
+ * by program, along with how long each source root took to index and check for errors and what
+ * the Java side holds for the programs. Available over JMX as netbeanstypescript:type=TSMetrics,
+ * and logged when a nodejs worker shuts down.
+ *
+ * @author jeffrey
+ */
+public final class TSMetrics {
+
+    /**
+     * The JMX view of the metrics.
+     */
+    public interface TSMetricsMXBean {
+        /** One line per method and per program, busiest first, then one per source root. */
+        String dump();
+        void reset();
+    }
+
+    /**
+     * A histogram with buckets of logarithmic width, like HdrHistogram with 3 significant bits:
+     * each power of two is split into 8 buckets, so a percentile is off by at most 12.5%.
+     */
+    static final class Histogram {
+        private static final int SUB_BITS = 3, SUB_COUNT = 1 << SUB_BITS;
+        private final AtomicLongArray counts = new AtomicLongArray(2 * SUB_COUNT + (63 - SUB_BITS - 1) * SUB_COUNT);
+        private final AtomicLong count = new AtomicLong(), total = new AtomicLong(), max = new AtomicLong();
+
+        private static int index(long value) {
+            if (value < 2 * SUB_COUNT) {
+                return (int) Math.max(value, 0);
+            }
+            int exp = 63 - Long.numberOfLeadingZeros(value);
+            return 2 * SUB_COUNT + (exp - SUB_BITS - 1) * SUB_COUNT + (int) ((value >> (exp - SUB_BITS)) & (SUB_COUNT - 1));
+        }
+
+        // The smallest value that falls in the bucket after the given one
+        private static long upperBound(int index) {
+            if (index < 2 * SUB_COUNT) {
+                return index + 1;
+            }
+            int exp = (index - 2 * SUB_COUNT) / SUB_COUNT + SUB_BITS + 1;
+            long sub = (index - 2 * SUB_COUNT) % SUB_COUNT;
+            return (SUB_COUNT + sub + 1) << (exp - SUB_BITS);
+        }
+
+        void record(long value) {
+            counts.incrementAndGet(index(value));
+            count.incrementAndGet();
+            total.addAndGet(value);
+            long m;
+            while (value > (m = max.get()) && ! max.compareAndSet(m, value)) {}
+        }
+
+        long count() { return count.get(); }
+        long total() { return total.get(); }
+        long max() { return max.get(); }
+
+        long percentile(double p) {
+            long rank = (long) Math.ceil(count.get() * p / 100);
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank && seen > 0) {
+                    return Math.min(upperBound(i) - 1, max.get());
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * What is recorded for each method and each program. Times are in nanoseconds.
+     */
+    static final class Stats {
+        // From the request being made to its response arriving
+        final Histogram roundTrip = new Histogram();
+        // From asking for the request until it was handed to the process: waiting for
+        // TSService.lock or a program's lock, reloading the program if it was evicted, and
+        // waiting for the process's monitor
+        final Histogram lockWait = new Histogram();
+        // Decoding the response, done by the thread that asks for the result
+        final Histogram decode = new Histogram();
+        final Histogram requestBytes = new Histogram(), responseBytes = new Histogram();
+    }
+
+    /**
+     * The IDE's side of indexing and error checking a source root. Times are in nanoseconds.
+     */
+    static final class RootStats {
+        // Summed over every batch of files the indexer has given us
+        final AtomicLong indexedFiles = new AtomicLong(), indexNanos = new AtomicLong();
+        // Of the last updateErrors that ran to completion
+        volatile int checkedFiles;
+        volatile long checkNanos;
+        // Of the last updateErrors after an edit, from its start until the edited files and those
+        // that import them were all checked
+        volatile long dependentsNanos = -1;
+    }
+
+    private static final ConcurrentMap<String, Stats> byMethod = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Stats> byProgram = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, RootStats> byRoot = new ConcurrentHashMap<>();
+    // Program IDs, as used in requests, to the URLs of their source roots
+    private static final ConcurrentMap<Integer, String> programNames = new ConcurrentHashMap<>();
+
+    static {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("netbeanstypescript:type=TSMetrics");
+            TSMetricsMXBean bean = new TSMetricsMXBean() {
+                @Override
+                public String dump() {
+                    return TSMetrics.dump();
+                }
+                @Override
+                public void reset() {
+                    TSMetrics.reset();
+                }
+            };
+            try {
+                server.registerMBean(bean, name);
+            } catch (InstanceAlreadyExistsException e) {
+                // Registered by this class as loaded before the module was reloaded, and would
+                // keep that copy of it in memory and report its stale numbers
+                server.unregisterMBean(name);
+                server.registerMBean(bean, name);
+            }
+        } catch (Exception e) {
+            TSService.log.log(Level.INFO, "Could not register TSMetrics MBean", e);
+        }
+    }
+
+    private TSMetrics() {}
+
+    static void programAdded(int progId, URL rootURL) {
+        programNames.put(progId, rootURL.toString());
+    }
+
+    static void programRemoved(int progId) {
+        programNames.remove(progId);
+    }
+
+    private static Stats stats(ConcurrentMap<String, Stats> map, String key) {
+        Stats stats = map.get(key);
+        if (stats == null) {
+            Stats created = new Stats();
+            stats = map.putIfAbsent(key, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        return stats;
+    }
+
+    // Requests not addressed to a program are only counted by method
+    private static Stats programStats(Integer progId) {
+        String name = progId == null ? null : programNames.get(progId);
+        return name == null ? null : stats(byProgram, name);
+    }
+
+    static void recordCall(String method, Integer progId, long roundTripNanos, int requestBytes, int responseBytes) {
+        record(stats(byMethod, method), roundTripNanos, requestBytes, responseBytes);
+        Stats stats = programStats(progId);
+        if (stats != null) {
+            record(stats, roundTripNanos, requestBytes, responseBytes);
+        }
+    }
+
+    private static void record(Stats stats, long roundTripNanos, int requestBytes, int responseBytes) {
+        stats.roundTrip.record(roundTripNanos);
+        stats.requestBytes.record(requestBytes);
+        stats.responseBytes.record(responseBytes);
+    }
+
+    static void recordLockWait(String method, Integer progId, long nanos) {
+        stats(byMethod, method).lockWait.record(nanos);
+        Stats stats = programStats(progId);
+        if (stats != null) {
+            stats.lockWait.record(nanos);
+        }
+    }
+
+    static void recordDecode(String method, Integer progId, long nanos) {
+        stats(byMethod, method).decode.record(nanos);
+        Stats stats = programStats(progId);
+        if (stats != null) {
+            stats.decode.record(nanos);
+        }
+    }
+
+    private static RootStats rootStats(URL rootURL) {
+        String key = rootURL.toString();
+        RootStats stats = byRoot.get(key);
+        if (stats == null) {
+            RootStats created = new RootStats();
+            stats = byRoot.putIfAbsent(key, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        return stats;
+    }
+
+    static void recordIndexing(URL rootURL, int files, long nanos) {
+        RootStats stats = rootStats(rootURL);
+        stats.indexedFiles.addAndGet(files);
+        stats.indexNanos.addAndGet(nanos);
+    }
+
+    static void recordErrorsUpdate(URL rootURL, int files, long nanos) {
+        RootStats stats = rootStats(rootURL);
+        stats.checkedFiles = files;
+        stats.checkNanos = nanos;
+    }
+
+    static void recordDependentsChecked(URL rootURL, long nanos) {
+        rootStats(rootURL).dependentsNanos = nanos;
+    }
+
+    static void reset() {
+        byMethod.clear();
+        byProgram.clear();
+        byRoot.clear();
+    }
+
+    static String dump() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-40s %8s %27s %19s %19s %21s%n", "", "calls",
+                "round trip p50/p99/max ms", "lock wait p99/max", "decode p99/max", "bytes out/in mean"));
+        dump(sb, "Method ", byMethod);
+        dump(sb, "Program ", byProgram);
+        for (Map.Entry<String, RootStats> entry: byRoot.entrySet()) {
+            RootStats s = entry.getValue();
+            sb.append(String.format("Root %s: indexed %d files in %.1fs, last error check of %d files took %.1fs",
+                    entry.getKey(), s.indexedFiles.get(), s.indexNanos.get() / 1e9, s.checkedFiles, s.checkNanos / 1e9));
+            if (s.dependentsNanos >= 0) {
+                sb.append(String.format(", of the last edited files and their importers %.1fs", s.dependentsNanos / 1e9));
+            }
+            sb.append(String.format("%n"));
+        }
+        sb.append("Held in the IDE: ").append(TSService.footprint()).append(String.format("%n"));
+        return sb.toString();
+    }
+
+    private static void dump(StringBuilder sb, String prefix, Map<String, Stats> map) {
+        List<Map.Entry<String, Stats>> entries = new ArrayList<>(map.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Stats>>() {
+            @Override
+            public int compare(Map.Entry<String, Stats> a, Map.Entry<String, Stats> b) {
+                return Long.compare(b.getValue().roundTrip.total(), a.getValue().roundTrip.total());
+            }
+        });
+        for (Map.Entry<String, Stats> entry: entries) {
+            Stats s = entry.getValue();
+            long n = s.roundTrip.count();
+            sb.append(String.format("%-40s %8d %8.1f/%8.1f/%8.1f %9.1f/%9.1f %9.1f/%9.1f %10d/%10d%n",
+                    prefix + entry.getKey(), n,
+                    ms(s.roundTrip.percentile(50)), ms(s.roundTrip.percentile(99)), ms(s.roundTrip.max()),
+                    ms(s.lockWait.percentile(99)), ms(s.lockWait.max()),
+                    ms(s.decode.percentile(99)), ms(s.decode.max()),
+                    n == 0 ? 0 : s.requestBytes.total() / n, n == 0 ? 0 : s.responseBytes.total() / n));
+        }
+    }
+
+    private static double ms(long nanos) {
+        return nanos / 1e6;
+    }
+}
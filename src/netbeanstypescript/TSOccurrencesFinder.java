@@ -39,8 +39,7 @@ package netbeanstypescript;
 
 import java.util.HashMap;
 import java.util.Map;
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
+import java.util.concurrent.Future;
 import org.netbeans.modules.csl.api.ColoringAttributes;
 import org.netbeans.modules.csl.api.OccurrencesFinder;
 import org.netbeans.modules.csl.api.OffsetRange;
@@ -56,6 +55,7 @@ public class TSOccurrencesFinder extends OccurrencesFinder<Parser.Result> {
 
     private int caretPosition;
     private Map<OffsetRange, ColoringAttributes> result;
+    private volatile Future<?> pendingCall;
 
     @Override
     public void setCaretPosition(int pos) {
@@ -69,15 +69,18 @@ public class TSOccurrencesFinder extends OccurrencesFinder<Parser.Result> {
 
     @Override
     public void run(Parser.Result t, SchedulerEvent se) {
-        Object occurrences = TSService.call("getOccurrencesAtPosition",
+        Future<int[]> call = TSService.callAsync(TSService.spansDecoder, "getOccurrencesAtPosition",
                 t.getSnapshot().getSource().getFileObject(), caretPosition);
+        pendingCall = call;
+        int[] occurrences = TSService.await(call);
+        pendingCall = null;
+        if (call.isCancelled()) {
+            return;
+        }
         Map<OffsetRange, ColoringAttributes> ranges = new HashMap<>();
         if (occurrences != null) {
-            for (Object o: (JSONArray) occurrences) {
-                JSONObject occ = (JSONObject) o;
-                int start = ((Number) occ.get("start")).intValue();
-                int end = ((Number) occ.get("end")).intValue();
-                ranges.put(new OffsetRange(start, end), ColoringAttributes.MARK_OCCURRENCES);
+            for (int i = 0; i < occurrences.length; i += 2) {
+                ranges.put(new OffsetRange(occurrences[i], occurrences[i + 1]), ColoringAttributes.MARK_OCCURRENCES);
             }
         }
         result = ranges;
@@ -94,5 +97,10 @@ public class TSOccurrencesFinder extends OccurrencesFinder<Parser.Result> {
     }
 
     @Override
-    public void cancel() {}
+    public void cancel() {
+        Future<?> call = pendingCall;
+        if (call != null) {
+            call.cancel(false);
+        }
+    }
 }
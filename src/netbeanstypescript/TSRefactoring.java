@@ -53,6 +53,7 @@ import javax.swing.text.Document;
 import javax.swing.text.Position;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
+import org.json.simple.parser.ParseException;
 import org.netbeans.lib.editor.util.StringEscapeUtils;
 import org.netbeans.modules.csl.api.DeclarationFinder;
 import org.netbeans.modules.csl.api.ElementHandle;
@@ -124,6 +125,44 @@ public class TSRefactoring extends ActionsImplementationProvider {
         FileObject fileObj;
         int caretPosition;
 
+        // The uses of a symbol, as parallel arrays. Each file name is given once, in fileNames,
+        // and files holds indexes into it.
+        static class References {
+            String[] fileNames, lineTexts;
+            int[] files, starts, ends, lineStarts;
+        }
+
+        static final TSService.Decoder<References> referencesDecoder = new TSService.Decoder<References>() {
+            @Override
+            public References decode(JSONReader in) throws ParseException {
+                References refs = new References();
+                in.beginObject();
+                while (in.hasNext()) {
+                    switch (in.nextName()) {
+                        case "fileNames": refs.fileNames = nextStrings(in); break;
+                        case "files": refs.files = in.nextIntArray(); break;
+                        case "starts": refs.starts = in.nextIntArray(); break;
+                        case "ends": refs.ends = in.nextIntArray(); break;
+                        case "lineStarts": refs.lineStarts = in.nextIntArray(); break;
+                        case "lineTexts": refs.lineTexts = nextStrings(in); break;
+                        default: in.skipValue();
+                    }
+                }
+                in.endObject();
+                return refs;
+            }
+
+            private String[] nextStrings(JSONReader in) throws ParseException {
+                List<String> strings = new ArrayList<>();
+                in.beginArray();
+                while (in.hasNext()) {
+                    strings.add(in.nextString());
+                }
+                in.endArray();
+                return strings.toArray(new String[strings.size()]);
+            }
+        };
+
         TSWhereUsedQuery(EditorCookie ec) {
             super(Lookup.EMPTY);
             this.fileObj = GsfUtilities.findFileObject(ec.getDocument());
@@ -136,8 +175,8 @@ public class TSRefactoring extends ActionsImplementationProvider {
             @Override public Problem fastCheckParameters() { return null; }
             @Override public void cancelRequest() {}
             @Override public Problem prepare(RefactoringElementsBag refactoringElements) {
-                Object arr = TSService.call("getReferencesAtPosition", fileObj, caretPosition);
-                if (arr == null) {
+                References refs = TSService.call(referencesDecoder, "getReferencesAtPosition", fileObj, caretPosition);
+                if (refs == null) {
                     // Doesn't work without dialog?
                     //return new Problem(true, "Could not find symbol at " + fileObj + " offset " + caretPosition);
                     refactoringElements.add(TSWhereUsedQuery.this, new SimpleRefactoringElementImplementation() {
@@ -152,15 +191,19 @@ public class TSRefactoring extends ActionsImplementationProvider {
                     });
                     return null;
                 }
+                FileObject[] fileObjs = new FileObject[refs.fileNames.length];
+                for (int i = 0; i < fileObjs.length; i++) {
+                    fileObjs[i] = TSService.findFile(fileObj, refs.fileNames[i]);
+                }
                 List<RefactoringElementImplementation> uses = new ArrayList<>();
-                for (JSONObject use: (List<JSONObject>) arr) {
-                    final int start = ((Number) use.get("start")).intValue();
-                    final int end = ((Number) use.get("end")).intValue();
+                for (int i = 0; i < refs.starts.length; i++) {
+                    final int start = refs.starts[i];
+                    final int end = refs.ends[i];
 
-                    final int lineStart = ((Number) use.get("lineStart")).intValue();
-                    final String lineText = (String) use.get("lineText");
+                    final int lineStart = refs.lineStarts[i];
+                    final String lineText = refs.lineTexts[i];
 
-                    final FileObject useFileObj = (FileObject) use.get("fileObject");
+                    final FileObject useFileObj = fileObjs[refs.files[i]];
 
                     CloneableEditorSupport ces = GsfUtilities.findCloneableEditorSupport(useFileObj);
                     PositionRef ref1 = ces.createPositionRef(start, Position.Bias.Forward);
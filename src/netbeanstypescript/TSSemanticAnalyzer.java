@@ -37,13 +37,15 @@
  */
 package netbeanstypescript;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import org.json.simple.JSONObject;
+import java.util.concurrent.Future;
+import org.json.simple.parser.ParseException;
 import org.netbeans.modules.csl.api.ColoringAttributes;
 import org.netbeans.modules.csl.api.OffsetRange;
 import org.netbeans.modules.csl.api.SemanticAnalyzer;
@@ -58,6 +60,59 @@ import org.netbeans.modules.parsing.spi.SchedulerEvent;
 public class TSSemanticAnalyzer extends SemanticAnalyzer<Parser.Result> {
 
     private Map<OffsetRange, Set<ColoringAttributes>> result;
+    private volatile Future<?> pendingCall;
+
+    // Decodes the parallel arrays of starts (each relative to the one before), lengths, and
+    // bitmasks of indexes into attrs. Highlights with the same attributes share one set.
+    static final TSService.Decoder<Map<OffsetRange, Set<ColoringAttributes>>> highlightsDecoder =
+            new TSService.Decoder<Map<OffsetRange, Set<ColoringAttributes>>>() {
+        @Override
+        public Map<OffsetRange, Set<ColoringAttributes>> decode(JSONReader in) throws ParseException {
+            List<ColoringAttributes> attrs = new ArrayList<>();
+            int[] starts = null, lengths = null, bits = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "attrs":
+                        in.beginArray();
+                        while (in.hasNext()) {
+                            attrs.add(ColoringAttributes.valueOf(in.nextString()));
+                        }
+                        in.endArray();
+                        break;
+                    case "starts": starts = in.nextIntArray(); break;
+                    case "lengths": lengths = in.nextIntArray(); break;
+                    case "bits": bits = in.nextIntArray(); break;
+                    default: in.skipValue();
+                }
+            }
+            in.endObject();
+            if (starts == null || lengths == null || bits == null
+                    || lengths.length != starts.length || bits.length != starts.length) {
+                throw new ParseException(ParseException.ERROR_UNEXPECTED_TOKEN);
+            }
+            Map<OffsetRange, Set<ColoringAttributes>> map = new HashMap<>(starts.length * 4 / 3 + 1);
+            Map<Integer, Set<ColoringAttributes>> setsByBits = new HashMap<>();
+            int start = 0;
+            for (int i = 0; i < starts.length; i++) {
+                start += starts[i];
+                Set<ColoringAttributes> atts = setsByBits.get(bits[i]);
+                if (atts == null) {
+                    Set<ColoringAttributes> set = EnumSet.noneOf(ColoringAttributes.class);
+                    for (int bit = 0; bit < attrs.size(); bit++) {
+                        if ((bits[i] & (1 << bit)) != 0) {
+                            set.add(attrs.get(bit));
+                        }
+                    }
+                    // Shared by every range with the same attributes, so it must not be changed
+                    atts = Collections.unmodifiableSet(set);
+                    setsByBits.put(bits[i], atts);
+                }
+                map.put(new OffsetRange(start, start + lengths[i]), atts);
+            }
+            return map;
+        }
+    };
 
     @Override
     public Map<OffsetRange, Set<ColoringAttributes>> getHighlights() {
@@ -66,23 +121,15 @@ public class TSSemanticAnalyzer extends SemanticAnalyzer<Parser.Result> {
 
     @Override
     public void run(Parser.Result t, SchedulerEvent se) {
-        Object highlights = TSService.call("getSemanticHighlights",
-                t.getSnapshot().getSource().getFileObject());
-        if (highlights == null) {
-            result = Collections.emptyMap();
+        Future<Map<OffsetRange, Set<ColoringAttributes>>> call = TSService.callAsync(highlightsDecoder,
+                "getSemanticHighlights", t.getSnapshot().getSource().getFileObject());
+        pendingCall = call;
+        Map<OffsetRange, Set<ColoringAttributes>> highlights = TSService.await(call);
+        pendingCall = null;
+        if (call.isCancelled()) {
             return;
         }
-        Map<OffsetRange, Set<ColoringAttributes>> map = new HashMap<>();
-        for (JSONObject hi: (List<JSONObject>) highlights) {
-            int start = ((Number) hi.get("s")).intValue();
-            int length = ((Number) hi.get("l")).intValue();
-            EnumSet<ColoringAttributes> atts = EnumSet.noneOf(ColoringAttributes.class);
-            for (String attr: (List<String>) hi.get("a")) {
-                atts.add(ColoringAttributes.valueOf(attr));
-            }
-            map.put(new OffsetRange(start, start + length), atts);
-        }
-        result = map;
+        result = highlights != null ? highlights : Collections.<OffsetRange, Set<ColoringAttributes>>emptyMap();
     }
 
     @Override
@@ -96,5 +143,10 @@ public class TSSemanticAnalyzer extends SemanticAnalyzer<Parser.Result> {
     }
 
     @Override
-    public void cancel() {}
+    public void cancel() {
+        Future<?> call = pendingCall;
+        if (call != null) {
+            call.cancel(false);
+        }
+    }
 }
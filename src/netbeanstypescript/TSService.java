@@ -37,26 +37,50 @@
  */
 package netbeanstypescript;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.swing.text.JTextComponent;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONValue;
 import org.json.simple.parser.ParseException;
+import org.netbeans.api.editor.EditorRegistry;
 import org.netbeans.api.progress.ProgressHandle;
 import org.netbeans.api.progress.ProgressHandleFactory;
 import org.netbeans.modules.csl.api.Severity;
@@ -68,6 +92,7 @@ import org.netbeans.modules.parsing.spi.indexing.ErrorsCache;
 import org.netbeans.modules.parsing.spi.indexing.ErrorsCache.Convertor;
 import org.netbeans.modules.parsing.spi.indexing.Indexable;
 import org.openide.filesystems.FileObject;
+import org.openide.filesystems.FileUtil;
 import org.openide.filesystems.URLMapper;
 import org.openide.modules.InstalledFileLocator;
 import org.openide.util.RequestProcessor;
@@ -79,20 +104,92 @@ import org.openide.util.RequestProcessor;
 public class TSService {
 
     static final Logger log = Logger.getLogger(TSService.class.getName());
-    static final RequestProcessor RP = new RequestProcessor("TSService", 1, true);
+
+    // Number of nodejs processes that programs are spread across. Each program lives in one
+    // process, so programs in different processes are checked in parallel and don't share a heap.
+    private static final int workerCount = Math.max(1, Integer.getInteger("nbts.nodeWorkers",
+            Math.min(4, Runtime.getRuntime().availableProcessors())));
+    // A program with more files than this is given a process of its own if one is free.
+    private static final int dedicatedWorkerFiles = Integer.getInteger("nbts.dedicatedWorkerFiles", 2000);
+    // Whether nodejs may read files that are not open in the editor from disk itself
+    private static final boolean readFromDisk = ! Boolean.getBoolean("nbts.sendAllFileTexts");
+    // A program that hasn't been queried for this long is dropped from nodejs, and recreated when
+    // next needed. 0 disables this.
+    private static final long programIdleMillis = TimeUnit.MINUTES.toMillis(Integer.getInteger("nbts.programIdleMinutes", 30));
+    // While a process's heap as last reported is larger than this, its least recently used
+    // program is dropped too, one per check. 0 means no limit.
+    private static final long workerHeapBudget = Long.getLong("nbts.workerHeapMB", 0) << 20;
+    private static final long evictionCheckMillis = 60000;
+    // A process that has not answered a request for this long is assumed to be hung, and is
+    // killed and restarted
+    private static final long requestTimeoutNanos = TimeUnit.SECONDS.toNanos(Integer.getInteger("nbts.requestTimeoutSeconds", 300));
+    private static final int watchdogMillis = 5000;
+    // A process that dies is restarted, but no more than this many times in restartWindowMillis
+    private static final int maxRestarts = 3;
+    private static final long restartWindowMillis = TimeUnit.MINUTES.toMillis(10);
+    // If set, a directory where everything written to each nodejs process is also recorded, to
+    // be played back by bench/replay.js
+    private static final String recordDir = System.getProperty("nbts.recordSession");
+    // updateErrors asks for the diagnostics of up to errorsBatchFiles files at a time, and nodejs
+    // stops after errorsBatchMillis so the user's requests aren't kept waiting behind a batch
+    private static final int errorsBatchFiles = 200;
+    private static final int errorsBatchMillis = Integer.getInteger("nbts.errorsBatchMillis", 100);
+    // Whether diagnostics are saved between sessions (see DiagnosticsCache)
+    private static final boolean cacheDiagnostics = ! Boolean.getBoolean("nbts.noDiagnosticsCache");
+    // Whether updateErrors checks open files, importers of edited files and recently changed files
+    // before the others, or all of them in the order the indexer gave them
+    private static final boolean prioritizeErrors = ! Boolean.getBoolean("nbts.noErrorsPriority");
+    // How many of the most recently changed files of each program are checked early
+    private static final int recentFilesMax = 50;
+
+    static final RequestProcessor RP = new RequestProcessor("TSService", workerCount, true);
+
+    // These run only while there is a worker: they are started with the first one, and stop
+    // rescheduling themselves once the last one is shut down
+    private static final RequestProcessor.Task evictionTask = RP.create(new Runnable() {
+        @Override
+        public void run() {
+            try {
+                evictPrograms();
+            } finally {
+                if (hasWorkers()) {
+                    evictionTask.schedule((int) evictionCheckMillis);
+                }
+            }
+        }
+    });
+    private static final RequestProcessor.Task watchdogTask = RP.create(new Runnable() {
+        @Override
+        public void run() {
+            try {
+                killHungWorkers();
+            } finally {
+                if (hasWorkers()) {
+                    watchdogTask.schedule(watchdogMillis);
+                }
+            }
+        }
+    });
 
     private static class ExceptionFromJS extends Exception {
         ExceptionFromJS(String msg) { super(msg); }
     }
 
+    // Appends s as a JSON string literal. Only what JSON requires is escaped; everything else,
+    // including non-ASCII characters, passes through as is and is sent as UTF-8.
     static void stringToJS(StringBuilder sb, CharSequence s) {
         sb.append('"');
         for (int i = 0; i < s.length(); i++) {
             char c = s.charAt(i);
-            if (c < 0x20 || c > 0x7E) {
-                sb.append("\\u");
-                for (int j = 12; j >= 0; j -= 4) {
-                    sb.append("0123456789ABCDEF".charAt((c >> j) & 0x0F));
+            if (c < 0x20) {
+                switch (c) {
+                    case '\n': sb.append("\\n"); break;
+                    case '\r': sb.append("\\r"); break;
+                    case '\t': sb.append("\\t"); break;
+                    default:
+                        sb.append("\\u00");
+                        sb.append("0123456789ABCDEF".charAt(c >> 4));
+                        sb.append("0123456789ABCDEF".charAt(c & 0x0F));
                 }
             } else {
                 if (c == '\\' || c == '"') {
@@ -104,34 +201,234 @@ public class TSService {
         sb.append('"');
     }
 
-    // All access to the TSService state below should be done with this lock acquired. This lock
-    // has a fair ordering policy so error checking won't starve other user actions.
-    private static final Lock lock = new ReentrantLock(true);
+    // The header, JSON and text (null if there is none) of a request, as written to nodejs (see
+    // NodeJSProcess.encodeRequest)
+    static byte[][] encodeFrame(int id, Integer progId, String method, Object... args) {
+        byte[] text = null;
+        if (args.length > 0 && args[args.length - 1] instanceof CharSequence) {
+            text = args[args.length - 1].toString().getBytes(StandardCharsets.UTF_8);
+            args = Arrays.copyOf(args, args.length - 1);
+        }
+        byte[] payload = NodeJSProcess.encodeRequest(progId, method, args).getBytes(StandardCharsets.UTF_8);
+        byte[] header = (id + " " + payload.length + (text != null ? " " + text.length : "") + "\n")
+                .getBytes(StandardCharsets.US_ASCII);
+        return new byte[][] { header, payload, text };
+    }
+
+    // Guards the maps below, the worker processes and their placement counts. It is only held for
+    // lookups and updates of these, never while waiting on nodejs: a process is started without
+    // it (see startWorker), and only added to workers once it is ready. The state of each program
+    // is guarded by that program's own lock, so work on one source root does not hold up the
+    // others. Locks are taken in this order: a program's lock, then startLock, then this lock.
+    // So this lock may be taken while holding a program lock (checkProgramSize does), but a
+    // program lock is never taken while holding this one.
+    private static final Lock lock = new ReentrantLock();
+    // Held while starting a process, so that only one thread at a time claims a free slot in
+    // workers. Starting a process can take a while, so this is held without lock.
+    private static final Lock startLock = new ReentrantLock();
 
-    private static NodeJSProcess nodejs = null;
+    // Started when first needed and shut down when their last program is removed
+    private static final NodeJSProcess[] workers = new NodeJSProcess[workerCount];
+    private static int nextProgId = 0;
     private static final Map<URL, ProgramData> programs = new HashMap<>();
     private static final Map<FileObject, FileData> allFiles = new HashMap<>();
+    // When workers were last restarted, oldest first
+    private static final ArrayDeque<Long> restartTimes = new ArrayDeque<>();
+
+    // Requests of higher priority are written to nodejs first. The time from each request being
+    // made to its response arriving is recorded for its priority.
+    enum Priority {
+        // Queries the user is waiting on, like completion, quick info and go to declaration
+        INTERACTIVE,
+        // Changes to programs, which are always written in the order they are made
+        NORMAL,
+        // Error checking of a whole source root, one file at a time. Such a request is held back
+        // while any other request is in flight, and only one is in flight at a time.
+        BACKGROUND;
+
+        private final AtomicLong count = new AtomicLong(), totalNanos = new AtomicLong(),
+                maxNanos = new AtomicLong();
+
+        void record(long nanos) {
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max;
+            while (nanos > (max = maxNanos.get()) && ! maxNanos.compareAndSet(max, nanos)) {}
+        }
+
+        static String latencySummary() {
+            StringBuilder sb = new StringBuilder("Request latency:");
+            for (Priority p: values()) {
+                long n = p.count.get();
+                sb.append(String.format(" %s %d calls, mean %.1fms, max %.1fms;", p, n,
+                        n == 0 ? 0.0 : p.totalNanos.get() / 1e6 / n, p.maxNanos.get() / 1e6));
+            }
+            return sb.toString();
+        }
+    }
+
+    // A request that has been made to nodejs and whose response may not have arrived yet.
+    // Responses are decoded lazily by whichever thread calls get().
+    private static class PendingCall implements Future<Object> {
+        final int id;
+        final Priority priority;
+        final long startTime = System.nanoTime();
+        String method; // for TSMetrics
+        Integer progId;
+        int requestBytes;
+        Object[] request; // progId, method and args of a BACKGROUND request not yet written
+        final CountDownLatch done = new CountDownLatch(1);
+        Decoder<?> decoder; // if not set, the result is a tree of JSONObjects and JSONArrays
+        ProgramData program; // if set, file names in such a tree are translated to file objects
+        NodeJSProcess nodejs; // the process to signal if the call is cancelled
+        private char kind; // 'R' for a returned value, 'X' for an exception thrown in nodejs,
+                           // 'C' if nodejs stopped because the call was cancelled
+        private String response;
+        private Exception error;
+        private boolean cancelled;
+        private boolean decoded;
+        private Object value;
+
+        PendingCall(int id, Priority priority) {
+            this.id = id;
+            this.priority = priority;
+        }
+
+        synchronized void finish(char kind, String response, Exception error) {
+            if (done.getCount() == 0) return;
+            this.kind = kind;
+            this.response = response;
+            this.error = error;
+            done.countDown();
+        }
+
+        // Besides releasing any waiting threads, asks nodejs to abandon the request, so that the
+        // requests behind it don't have to wait for a result nobody wants. Must not be used for
+        // requests that change a program, since those would then be skipped.
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized (this) {
+                if (done.getCount() == 0) return false;
+                cancelled = true;
+                done.countDown();
+            }
+            if (nodejs != null) {
+                nodejs.requestCancel(id);
+            }
+            return true;
+        }
+
+        @Override
+        public synchronized boolean isCancelled() { return cancelled; }
+        @Override
+        public boolean isDone() { return done.getCount() == 0; }
+
+        @Override
+        public Object get() throws InterruptedException, ExecutionException {
+            done.await();
+            return result();
+        }
+
+        @Override
+        public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (! done.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return result();
+        }
+
+        private synchronized Object result() throws ExecutionException {
+            if (cancelled || kind == 'C') {
+                throw new CancellationException();
+            } else if (error != null) {
+                throw new ExecutionException(error);
+            }
+            if (! decoded) {
+                try {
+                    if (kind == 'X') {
+                        error = new ExceptionFromJS((String) JSONValue.parseWithException(response));
+                        throw new ExecutionException(error);
+                    }
+                    long t = System.nanoTime();
+                    if (decoder != null) {
+                        JSONReader in = new JSONReader(response);
+                        value = in.nextNull() ? null : decoder.decode(in);
+                        in.endOfInput();
+                    } else {
+                        value = JSONValue.parseWithException(response);
+                        if (program != null) {
+                            translateFileNames(program, value);
+                        }
+                    }
+                    if (method != null) {
+                        TSMetrics.recordDecode(method, progId, System.nanoTime() - t);
+                    }
+                } catch (ParseException | RuntimeException e) {
+                    // A decoder throws ClassCastException and the like if the response is not
+                    // shaped the way it expects
+                    value = null;
+                    error = e;
+                    throw new ExecutionException(e);
+                } finally {
+                    decoded = true;
+                    response = null;
+                }
+            }
+            return value;
+        }
+    }
 
     private static class NodeJSProcess {
+        Process process;
         OutputStream stdin;
-        BufferedReader stdout;
-        String error;
+        InputStream stdout;
+        volatile String error;
+        // Where nodejs looks for the IDs of cancelled requests, since it can't read stdin while
+        // a request is running
+        Path cancellationDir;
         static final String builtinLibPrefix = "(builtin) ";
         Map<String, FileObject> builtinLibs = new HashMap<>();
-        int nextProgId = 0;
+        final int slot;
+        // Used to place programs. The counts of programs are guarded by TSService.lock.
+        int programCount, largeProgramCount;
+        final AtomicInteger fileCount = new AtomicInteger();
+        volatile long heapUsed;
+        // Requests written to nodejs but not yet answered, by correlation ID. Guarded by this.
+        private final Map<Integer, PendingCall> pending = new HashMap<>();
+        private int nextCallId = 0;
+        // BACKGROUND requests not yet written, the number of other requests in flight, and
+        // whether a BACKGROUND request is in flight. Guarded by this.
+        private final ArrayDeque<PendingCall> deferred = new ArrayDeque<>();
+        private int foregroundInFlight = 0;
+        private boolean backgroundInFlight = false;
+        // When nodejs last answered a request, or was given one while it had none. Guarded by this.
+        private long lastProgress;
+        // Set by close(), so that the process ending is not taken for a crash
+        private volatile boolean closing;
+        // Copy of the requests written, if recordDir is set. Each request is preceded by a line
+        // with the milliseconds since the recording started. Guarded by this.
+        private OutputStream recording;
+        private long recordingStart;
 
-        NodeJSProcess() throws Exception {
-            log.info("Starting nodejs");
+        NodeJSProcess(int slot) throws Exception {
+            this.slot = slot;
+            log.log(Level.INFO, "Starting nodejs worker {0}", slot);
             File file = InstalledFileLocator.getDefault().locate("nbts-services.js", "netbeanstypescript", false);
+            try {
+                cancellationDir = Files.createTempDirectory("nbts-cancel");
+            } catch (IOException e) {
+                log.log(Level.INFO, "Could not create cancellation directory; requests can't be cancelled", e);
+            }
             // Node installs to /usr/local/bin on OS X, but OS X doesn't put /usr/local/bin in the
             // PATH of applications started from the GUI
             for (String command: new String[] { "nodejs", "node", "/usr/local/bin/node" }) {
                 try {
-                    Process process = new ProcessBuilder()
-                        .command(command, /*"--debug-brk",*/ "--harmony", file.toString())
+                    process = new ProcessBuilder()
+                        .command(command, /*"--debug-brk",*/ "--harmony", file.toString(),
+                                 cancellationDir != null ? cancellationDir.toString() : "")
                         .start();
-                    stdin = process.getOutputStream();
-                    stdout = new BufferedReader(new InputStreamReader(process.getInputStream()));
+                    stdin = new BufferedOutputStream(process.getOutputStream());
+                    stdout = new BufferedInputStream(process.getInputStream());
                     process.getErrorStream().close();
                     error = null;
                     break;
@@ -141,93 +438,567 @@ public class TSService {
                             + "\n\n" + e;
                 }
             }
+            if (error == null && recordDir != null) {
+                File recordFile = new File(recordDir, "session-" + slot + "-" + System.currentTimeMillis() + ".nbts");
+                try {
+                    recording = new BufferedOutputStream(Files.newOutputStream(recordFile.toPath()));
+                    recordingStart = System.nanoTime();
+                    log.log(Level.INFO, "Recording requests to nodejs worker {0} in {1}", new Object[] { slot, recordFile });
+                } catch (IOException e) {
+                    log.log(Level.INFO, "Could not record session", e);
+                }
+            }
+            if (error == null) {
+                Thread reader = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        readResponses();
+                    }
+                }, "TSService nodejs reader " + slot);
+                reader.setDaemon(true);
+                reader.start();
+            }
 
-            StringBuilder initLibs = new StringBuilder();
             for (String lib: new String[] { "lib.d.ts", "lib.es6.d.ts" }) {
-                initLibs.append("void(builtinLibs[");
-                stringToJS(initLibs, builtinLibPrefix + lib);
-                initLibs.append("]=");
                 URL libURL = TSService.class.getClassLoader().getResource("netbeanstypescript/resources/" + lib);
                 FileObject libObj = URLMapper.findFileObject(libURL);
-                stringToJS(initLibs, Source.create(libObj).createSnapshot().getText());
-                initLibs.append(");");
+                eval(null, "setBuiltinLib", builtinLibPrefix + lib, Source.create(libObj).createSnapshot().getText());
                 builtinLibs.put(builtinLibPrefix + lib, libObj);
             }
-            eval(initLibs.append('\n').toString());
         }
 
-        final Object eval(String code) throws ParseException, ExceptionFromJS {
+        // A request is a JSON array [programId, method, args...] (programId is null for requests
+        // not addressed to a program), framed by a "<id> <length>\n" header. If the last argument
+        // is text, it is instead sent unescaped after the JSON and the header becomes
+        // "<id> <length> <textLength>\n". All lengths are in bytes of UTF-8.
+        static String encodeRequest(Integer progId, String method, Object... args) {
+            StringBuilder sb = new StringBuilder().append('[').append(progId).append(',');
+            stringToJS(sb, method);
+            for (Object arg: args) {
+                sb.append(',');
+                appendJS(sb, arg);
+            }
+            return sb.append(']').toString();
+        }
+
+        // Strings, collections (as arrays) and anything whose toString is already JSON
+        static void appendJS(StringBuilder sb, Object value) {
+            if (value instanceof CharSequence) {
+                stringToJS(sb, (CharSequence) value);
+            } else if (value instanceof Collection) {
+                sb.append('[');
+                boolean first = true;
+                for (Object item: (Collection<?>) value) {
+                    if (! first) sb.append(',');
+                    appendJS(sb, item);
+                    first = false;
+                }
+                sb.append(']');
+            } else {
+                sb.append(String.valueOf(value));
+            }
+        }
+
+        // Makes a request without waiting for its response. Any number of requests may be in
+        // flight; nodejs handles them in the order they were written. BACKGROUND requests may be
+        // written later than requests made after them (see Priority).
+        synchronized PendingCall send(Priority priority, Integer progId, String method, Object... args) {
+            PendingCall call = new PendingCall(nextCallId++, priority);
+            call.nodejs = this;
+            call.method = method;
+            call.progId = progId;
             if (error != null) {
-                return null;
+                call.finish('X', null, new IOException(error));
+                return call;
+            }
+            if (priority == Priority.BACKGROUND) {
+                call.request = new Object[] { progId, method, args };
+                deferred.add(call);
+                writeDeferred();
+            } else {
+                foregroundInFlight++;
+                write(call, progId, method, args);
+            }
+            return call;
+        }
+
+        // Writes the next BACKGROUND request if nothing else is in flight. Must hold this.
+        private void writeDeferred() {
+            PendingCall call;
+            while (foregroundInFlight == 0 && ! backgroundInFlight && (call = deferred.poll()) != null) {
+                if (! call.isCancelled()) {
+                    backgroundInFlight = true;
+                    write(call, (Integer) call.request[0], (String) call.request[1], (Object[]) call.request[2]);
+                }
+                call.request = null;
+            }
+        }
+
+        private void write(PendingCall call, Integer progId, String method, Object... args) {
+            byte[][] frame = encodeFrame(call.id, progId, method, args);
+            byte[] header = frame[0], payload = frame[1], text = frame[2];
+            if (log.isLoggable(Level.FINER)) {
+                String json = new String(payload, StandardCharsets.UTF_8);
+                log.log(Level.FINER, "OUT[{0}+{1},#{2}]: {3}", new Object[] {
+                    payload.length, text == null ? 0 : text.length, call.id,
+                    json.length() > 120 ? json.substring(0, 120) + "..." : json});
             }
-            log.log(Level.FINER, "OUT[{0}]: {1}", new Object[] {
-                code.length(), code.length() > 120 ? code.substring(0, 120) + "...\n" : code});
-            long t1 = System.currentTimeMillis();
-            String s;
+            if (pending.isEmpty()) {
+                lastProgress = System.nanoTime();
+            }
+            call.requestBytes = payload.length + (text == null ? 0 : text.length);
+            pending.put(call.id, call);
             try {
-                stdin.write(code.getBytes());
-                stdin.flush();
-                while ((s = stdout.readLine()) != null && s.charAt(0) == 'L') {
-                    log.fine((String) JSONValue.parseWithException(s.substring(1)));
+                stdin.write(header);
+                stdin.write(payload);
+                if (text != null) {
+                    stdin.write(text);
                 }
+                stdin.flush();
             } catch (Exception e) {
-                error = "Error communicating with Node.js process."
+                fail("Error communicating with Node.js process."
                         + "\n\nClose all TypeScript projects and reopen to retry."
-                        + "\n\n" + e;
+                        + "\n\n" + e);
+            }
+            if (recording != null) {
+                try {
+                    long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - recordingStart);
+                    recording.write((millis + "\n").getBytes(StandardCharsets.US_ASCII));
+                    recording.write(header);
+                    recording.write(payload);
+                    if (text != null) {
+                        recording.write(text);
+                    }
+                    recording.flush();
+                } catch (IOException e) {
+                    log.log(Level.INFO, "Could not record session; stopping", e);
+                    closeRecording();
+                }
+            }
+        }
+
+        private synchronized void closeRecording() {
+            if (recording != null) {
+                try {
+                    recording.close();
+                } catch (IOException e) {}
+                recording = null;
+            }
+        }
+
+        final Object eval(Integer progId, String method, Object... args) throws ExceptionFromJS, InterruptedException {
+            if (error != null) {
                 return null;
             }
-            log.log(Level.FINER, "IN[{0},{1}]: {2}\n", new Object[] {
-                s.length(), System.currentTimeMillis() - t1,
-                s.length() > 120 ? s.substring(0, 120) + "..." : s});
-            if (s.charAt(0) == 'X') {
-                throw new ExceptionFromJS((String) JSONValue.parseWithException(s.substring(1)));
-            } else if (s.equals("undefined")) {
-                return null; // JSON parser doesn't like undefined
-            } else {
-                return JSONValue.parseWithException(s);
+            try {
+                return send(Priority.NORMAL, progId, method, args).get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof ExceptionFromJS) {
+                    throw (ExceptionFromJS) e.getCause();
+                }
+                log.log(Level.INFO, "Exception in nodejs.eval", e.getCause());
+                return null;
+            }
+        }
+
+        // Reads "<kind><id> <length>\n" headers, each followed by <length> bytes of UTF-8 JSON
+        private void readResponses() {
+            try {
+                String header;
+                while ((header = readHeader()) != null) {
+                    int space = header.indexOf(' ');
+                    int id = Integer.parseInt(header.substring(1, space));
+                    byte[] payload = new byte[Integer.parseInt(header.substring(space + 1))];
+                    for (int n = 0; n < payload.length; ) {
+                        int read = stdout.read(payload, n, payload.length - n);
+                        if (read < 0) {
+                            throw new EOFException();
+                        }
+                        n += read;
+                    }
+                    String s = new String(payload, StandardCharsets.UTF_8);
+                    if (header.charAt(0) == 'L') {
+                        log.fine((String) JSONValue.parseWithException(s));
+                        continue;
+                    } else if (header.charAt(0) == 'M') {
+                        heapUsed = Long.parseLong(s);
+                        continue;
+                    }
+                    PendingCall call;
+                    synchronized (this) {
+                        lastProgress = System.nanoTime();
+                        call = pending.remove(id);
+                        if (call != null) {
+                            if (call.priority == Priority.BACKGROUND) {
+                                backgroundInFlight = false;
+                            } else {
+                                foregroundInFlight--;
+                            }
+                            writeDeferred();
+                        }
+                    }
+                    if (call == null) {
+                        continue;
+                    }
+                    if (call.isCancelled()) {
+                        clearCancel(id);
+                    }
+                    long nanos = System.nanoTime() - call.startTime;
+                    call.priority.record(nanos);
+                    TSMetrics.recordCall(call.method, call.progId, nanos, call.requestBytes, payload.length);
+                    log.log(Level.FINER, "IN[{0},#{1},{2}]: {3}\n", new Object[] {
+                        payload.length, id, nanos / 1000000,
+                        s.length() > 120 ? s.substring(0, 120) + "..." : s});
+                    call.finish(header.charAt(0), s, null);
+                }
+                fail("Node.js process exited."
+                        + "\n\nClose all TypeScript projects and reopen to retry.");
+            } catch (Exception e) {
+                fail("Error communicating with Node.js process."
+                        + "\n\nClose all TypeScript projects and reopen to retry."
+                        + "\n\n" + e);
+            }
+        }
+
+        private String readHeader() throws IOException {
+            StringBuilder sb = new StringBuilder();
+            int c;
+            while ((c = stdout.read()) != '\n') {
+                if (c < 0) {
+                    if (sb.length() == 0) return null;
+                    throw new EOFException();
+                }
+                sb.append((char) c);
+            }
+            return sb.toString();
+        }
+
+        // Creates the file that tells nodejs to abandon a request, unless its response already
+        // arrived. Once it does, readResponses removes the file.
+        synchronized void requestCancel(int id) {
+            if (cancellationDir == null || ! pending.containsKey(id)) {
+                return;
+            }
+            try {
+                Files.createFile(cancellationDir.resolve(Integer.toString(id)));
+                log.log(Level.FINER, "CANCEL[#{0}]", id);
+            } catch (IOException e) {
+                log.log(Level.INFO, "Could not cancel request " + id, e);
+            }
+        }
+
+        private void clearCancel(int id) {
+            try {
+                Files.deleteIfExists(cancellationDir.resolve(Integer.toString(id)));
+            } catch (IOException e) {
+                log.log(Level.INFO, null, e);
+            }
+        }
+
+        // How long nodejs has been working on its current request, or 0 if it has none
+        synchronized long stalledNanos() {
+            return pending.isEmpty() ? 0 : System.nanoTime() - lastProgress;
+        }
+
+        void kill() {
+            if (process != null) {
+                process.destroy();
+            }
+        }
+
+        private void fail(String message) {
+            List<PendingCall> failed;
+            boolean crashed;
+            synchronized (this) {
+                crashed = error == null && ! closing;
+                if (error == null) {
+                    error = message;
+                }
+                failed = new ArrayList<>(pending.values());
+                failed.addAll(deferred);
+                pending.clear();
+                deferred.clear();
+            }
+            for (PendingCall call: failed) {
+                call.finish('X', null, new IOException(message));
+            }
+            if (crashed && process != null) {
+                RP.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        restartWorker(NodeJSProcess.this);
+                    }
+                });
             }
         }
 
         void close() throws IOException {
+            closing = true;
+            closeRecording();
             if (stdin != null) stdin.close();
             if (stdout != null) stdout.close();
+            if (cancellationDir != null) {
+                try (DirectoryStream<Path> stale = Files.newDirectoryStream(cancellationDir)) {
+                    for (Path p: stale) {
+                        Files.deleteIfExists(p);
+                    }
+                }
+                Files.deleteIfExists(cancellationDir);
+            }
         }
     }
 
     private static class ProgramData {
-        final String progVar;
-        final Map<String, FileObject> files = new HashMap<>();
+        // Guards everything below, and makes sure the requests that change this program's files
+        // are written in the same order as the changes to fileTexts. This lock has a fair
+        // ordering policy so error checking won't starve other user actions.
+        final Lock lock = new ReentrantLock(true);
+        // Only changes when the program is moved to a process of its own, which is done holding
+        // both this lock and TSService.lock, or when its process is restarted, which marks it
+        // evicted. Also read without either lock.
+        volatile NodeJSProcess nodejs;
+        // Unique across all processes, so a request sent to a program's old process can't reach
+        // some other program
+        final int progId;
+        final URL rootURL;
+        // Set once the program has more than dedicatedWorkerFiles files. Guarded by TSService.lock.
+        boolean large;
+        boolean disposed;
+        // Set while the program is not loaded in nodejs, because it was dropped for being idle or
+        // its process was restarted. Changes to its files are then only recorded here, and it is
+        // recreated from them when next queried. Also read without the lock.
+        volatile boolean evicted;
+        // System.currentTimeMillis() of the last query or edit by the user. Read without the lock.
+        volatile long lastUsed = System.currentTimeMillis();
+        // Also read without the lock, to translate file names in results
+        final Map<String, FileObject> files = new ConcurrentHashMap<>();
         final Map<String, Indexable> indexables = new HashMap<>();
+        // The text of each file as last sent to nodejs, so that edits can be sent as deltas
+        final Map<String, String> fileTexts = new HashMap<>();
+        // For files that nodejs reads from disk instead, the path and the version registered
+        final Map<String, String[]> diskFiles = new HashMap<>();
+        // While addFiles runs, the changes it has sent and not yet waited for, each with the path
+        // of the file if it is an editFile
+        private Map<PendingCall, String> bulkRequests;
         boolean needErrorsUpdate;
         Object currentErrorsUpdate;
+        // The getDiagnostics call of the current updateErrors task, cancelled if it is superseded
+        PendingCall errorsCall;
+        // Read from disk by the first updateErrors task
+        DiagnosticsCache diagnosticsCache;
+        // The key of the diagnostics last given to ErrorsCache for each file. A file whose key is
+        // unchanged needn't be checked again, since nothing its diagnostics depend on has changed.
+        final Map<String, String> publishedKeys = new HashMap<>();
+        // Gives ErrorsCache the diagnostics, outside the lock
+        final ErrorsPublisher errorsPublisher;
+        // Files changed since the last updateErrors that ran to completion, whose importers are
+        // checked first
+        final Set<String> editedFiles = new LinkedHashSet<>();
+        // The files changed most recently, least recent first
+        final Map<String, Boolean> recentFiles = new LinkedHashMap<String, Boolean>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > recentFilesMax;
+            }
+        };
+
+        void cancelErrorsUpdate() {
+            currentErrorsUpdate = null;
+            if (errorsCall != null) {
+                errorsCall.cancel(false);
+                errorsCall = null;
+            }
+        }
+
+        ProgramData(NodeJSProcess nodejs, int progId, URL rootURL) {
+            this.nodejs = nodejs;
+            this.progId = progId;
+            this.rootURL = rootURL;
+            errorsPublisher = new ErrorsPublisher(rootURL);
+            TSMetrics.programAdded(progId, rootURL);
+            // Not waited for, since the process may be busy with another program's request
+            nodejs.send(Priority.NORMAL, null, "newProgram", progId);
+        }
 
-        ProgramData() throws Exception {
-            progVar = "p" + nodejs.nextProgId++;
-            nodejs.eval(progVar + " = new Program()\n");
+        // Takes the lock, recording the wait for TSMetrics under the given method
+        void lock(String method) {
+            long t = System.nanoTime();
+            lock.lock();
+            TSMetrics.recordLockWait(method, progId, System.nanoTime() - t);
         }
 
         Object call(String method, Object... args) {
-            StringBuilder sb = new StringBuilder(progVar).append('.').append(method).append('(');
-            for (Object arg: args) {
-                if (sb.charAt(sb.length() - 1) != '(') sb.append(',');
-                if (arg instanceof CharSequence) {
-                    stringToJS(sb, (CharSequence) arg);
-                } else {
-                    sb.append(String.valueOf(arg));
-                }
-            }
-            sb.append(")\n");
             try {
-                return nodejs.eval(sb.toString());
+                return callOrThrow(method, args);
             } catch (Exception e) {
                 log.log(Level.INFO, "Exception in nodejs.eval", e);
                 return null;
             }
         }
 
+        // Only used for changes to the program, which are not sent while it is evicted
+        Object callOrThrow(String method, Object... args) throws Exception {
+            if (evicted) {
+                return null;
+            }
+            return nodejs.eval(progId, method, args);
+        }
+
+        PendingCall send(Priority priority, String method, Object... args) {
+            if (priority == Priority.INTERACTIVE) {
+                lastUsed = System.currentTimeMillis();
+            }
+            while (true) {
+                // Checked under the process's monitor, which evict and rehydrate hold too, so
+                // that the request is never written between deleteProgram and the replay
+                NodeJSProcess worker = nodejs;
+                synchronized (worker) {
+                    if (worker == nodejs && (! evicted || disposed)) {
+                        return worker.send(priority, progId, method, args);
+                    }
+                }
+                // Callers that record the wait for TSMetrics time this call too, so that it
+                // includes reloading the program
+                lock.lock();
+                try {
+                    rehydrate();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
         final void setFileSnapshot(String relPath, Indexable indexable, Snapshot s, boolean modified) {
-            call("updateFile", relPath, s.getText(), modified);
-            files.put(relPath, s.getSource().getFileObject());
+            String newText = s.getText().toString();
+            String oldText = fileTexts.put(relPath, newText);
+            boolean wasOnDisk = diskFiles.remove(relPath) != null;
+            if (oldText == null) {
+                if (wasOnDisk && modified) {
+                    fileChanged(relPath);
+                }
+                if (bulkRequests != null) {
+                    sendChange(null, "updateFile", relPath, modified, newText);
+                } else {
+                    call("updateFile", relPath, modified, newText);
+                }
+            } else if (! newText.equals(oldText)) {
+                fileChanged(relPath);
+                // Only send the span between the common prefix and the common suffix
+                int start = 0, oldEnd = oldText.length(), newEnd = newText.length();
+                while (start < oldEnd && start < newEnd && oldText.charAt(start) == newText.charAt(start)) {
+                    start++;
+                }
+                // Neither end of the span may split a surrogate pair, which would not survive
+                // being encoded as UTF-8 on its own
+                if (start > 0 && Character.isHighSurrogate(newText.charAt(start - 1))) {
+                    start--;
+                }
+                while (oldEnd > start && newEnd > start && oldText.charAt(oldEnd - 1) == newText.charAt(newEnd - 1)) {
+                    oldEnd--;
+                    newEnd--;
+                }
+                if (oldEnd < oldText.length() && Character.isLowSurrogate(oldText.charAt(oldEnd))) {
+                    oldEnd++;
+                    newEnd++;
+                }
+                String delta = newText.substring(start, newEnd);
+                if (bulkRequests != null) {
+                    sendChange(relPath, "editFile", relPath, start, oldEnd, modified, delta);
+                } else {
+                    try {
+                        callOrThrow("editFile", relPath, start, oldEnd, modified, delta);
+                    } catch (Exception e) {
+                        log.log(Level.INFO, "Exception in editFile; resending whole file", e);
+                        call("updateFile", relPath, modified, newText);
+                    }
+                }
+            }
+            fileAdded(relPath, indexable, s.getSource().getFileObject());
+        }
+
+        // Records a file for nodejs to read from disk when it needs to. Returns false if it was
+        // already registered with the same version, so nodejs needn't be told again.
+        private boolean updateDiskFile(String relPath, FileObject fileObj, File file) {
+            String[] disk = { file.getPath(), fileObj.lastModified().getTime() + "/" + fileObj.getSize() };
+            String[] oldDisk = diskFiles.put(relPath, disk);
+            boolean changed = oldDisk != null && ! Arrays.equals(disk, oldDisk);
+            if (changed) {
+                fileChanged(relPath);
+            }
+            return fileTexts.remove(relPath) != null || oldDisk == null || changed;
+        }
+
+        private void fileChanged(String relPath) {
+            editedFiles.add(relPath);
+            recentFiles.remove(relPath);
+            recentFiles.put(relPath, true);
+        }
+
+        // Adds a batch of files. Those read from disk are sent in one request, and nodejs only
+        // evaluates tsconfig.json again once the whole batch is in. As in replay, the requests
+        // are all sent before any of them is waited for.
+        final void addFiles(FileBatch batch) {
+            List<String> diskNames = new ArrayList<>(), diskPaths = new ArrayList<>();
+            bulkRequests = new LinkedHashMap<>();
+            sendChange(null, "beginBulkLoad");
+            try {
+                for (int i = 0; i < batch.relPaths.size(); i++) {
+                    String relPath = batch.relPaths.get(i);
+                    FileObject fileObj = batch.fileObjs.get(i);
+                    File file = batch.diskFiles.get(i);
+                    if (file == null) {
+                        setFileSnapshot(relPath, batch.indexables.get(i), batch.snapshots.get(i), batch.modified);
+                        continue;
+                    }
+                    if (updateDiskFile(relPath, fileObj, file)) {
+                        diskNames.add(relPath);
+                        diskPaths.add(file.getPath());
+                    }
+                    fileAdded(relPath, batch.indexables.get(i), fileObj);
+                }
+                if (! diskNames.isEmpty()) {
+                    sendChange(null, "addDiskFiles", diskNames, diskPaths);
+                }
+            } finally {
+                sendChange(null, "endBulkLoad");
+                Map<PendingCall, String> sent = bulkRequests;
+                bulkRequests = null;
+                awaitChanges(sent, batch.modified);
+            }
+        }
+
+        // Sends a change for addFiles to wait for later. Not sent while the program is evicted.
+        private void sendChange(String editedPath, String method, Object... args) {
+            if (! evicted) {
+                bulkRequests.put(nodejs.send(Priority.NORMAL, progId, method, args), editedPath);
+            }
+        }
+
+        // Waits for the changes sent by addFiles, in order. A file whose edit failed is sent
+        // again whole, as setFileSnapshot does.
+        private void awaitChanges(Map<PendingCall, String> sent, boolean modified) {
+            for (Map.Entry<PendingCall, String> entry: sent.entrySet()) {
+                try {
+                    entry.getKey().get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (ExecutionException e) {
+                    String relPath = entry.getValue();
+                    if (relPath == null) {
+                        log.log(Level.INFO, "Exception in nodejs.eval", e.getCause());
+                    } else {
+                        log.log(Level.INFO, "Exception in editFile; resending whole file", e.getCause());
+                        call("updateFile", relPath, modified, fileTexts.get(relPath));
+                    }
+                }
+            }
+        }
+
+        private void fileAdded(String relPath, Indexable indexable, FileObject fileObj) {
+            if (files.put(relPath, fileObj) == null && ! evicted) {
+                nodejs.fileCount.incrementAndGet();
+            }
             if (indexable != null) {
                 indexables.put(relPath, indexable);
                 needErrorsUpdate = true;
@@ -240,17 +1011,77 @@ public class TSService {
 
         FileObject removeFile(String relPath) throws Exception {
             FileObject fileObj = files.remove(relPath);
+            fileTexts.remove(relPath);
+            diskFiles.remove(relPath);
             if (fileObj != null) {
+                if (! evicted) {
+                    nodejs.fileCount.decrementAndGet();
+                }
                 needErrorsUpdate = true;
                 call("deleteFile", relPath);
             }
             indexables.remove(relPath);
+            publishedKeys.remove(relPath);
+            errorsPublisher.forget(relPath);
             return fileObj;
         }
 
-        void dispose() throws Exception {
-            nodejs.eval("delete " + progVar + "\n");
+        // Recreates the program in nodejs from what was last sent. Not waited for.
+        private void replay() {
+            nodejs.send(Priority.NORMAL, null, "newProgram", progId);
+            nodejs.send(Priority.NORMAL, progId, "beginBulkLoad");
+            for (Map.Entry<String, String> entry: fileTexts.entrySet()) {
+                nodejs.send(Priority.NORMAL, progId, "updateFile", entry.getKey(), false, entry.getValue());
+            }
+            if (! diskFiles.isEmpty()) {
+                List<String> names = new ArrayList<>(), paths = new ArrayList<>();
+                for (Map.Entry<String, String[]> entry: diskFiles.entrySet()) {
+                    names.add(entry.getKey());
+                    paths.add(entry.getValue()[0]);
+                }
+                nodejs.send(Priority.NORMAL, progId, "addDiskFiles", names, paths);
+            }
+            nodejs.send(Priority.NORMAL, progId, "endBulkLoad");
+            nodejs.fileCount.addAndGet(files.size());
+        }
+
+        // After nodejs has been switched to another process, recreates the program there and
+        // deletes it from the old one. Queries sent in between may fail.
+        void moveFrom(NodeJSProcess old) {
+            if (evicted) {
+                return; // it will be recreated in the new process when needed
+            }
+            replay();
+            old.send(Priority.NORMAL, null, "deleteProgram", progId);
+            old.fileCount.addAndGet(-files.size());
+        }
+
+        // Drops the program from nodejs, keeping only what is needed to recreate it
+        void evict() {
+            synchronized (nodejs) {
+                evicted = true;
+                nodejs.fileCount.addAndGet(-files.size());
+                nodejs.send(Priority.NORMAL, null, "deleteProgram", progId);
+            }
+        }
+
+        void rehydrate() {
+            if (! evicted || disposed) {
+                return;
+            }
+            log.log(Level.INFO, "Reloading {0} ({1} files) into nodejs worker {2}",
+                    new Object[] { rootURL, files.size(), nodejs.slot });
+            synchronized (nodejs) {
+                evicted = false;
+                replay();
+            }
+        }
 
+        void dispose() throws Exception {
+            if (! evicted) {
+                nodejs.fileCount.addAndGet(-files.size());
+            }
+            nodejs.eval(null, "deleteProgram", progId);
         }
     }
 
@@ -259,91 +1090,560 @@ public class TSService {
         String relPath;
     }
 
-    static void addFile(Snapshot snapshot, Indexable indxbl, Context cntxt) {
-        lock.lock();
-        try {
-            URL rootURL = cntxt.getRootURI();
+    /**
+     * Files to add to a program together, with {@link #addFiles}.
+     */
+    static final class FileBatch {
+        final boolean modified;
+        final List<String> relPaths = new ArrayList<>();
+        final List<FileObject> fileObjs = new ArrayList<>();
+        final List<Indexable> indexables = new ArrayList<>();
+        // For each file, either the file for nodejs to read or a snapshot of its text
+        final List<File> diskFiles = new ArrayList<>();
+        final List<Snapshot> snapshots = new ArrayList<>();
 
-            ProgramData program = programs.get(rootURL);
-            if (program == null) {
-                if (nodejs == null) {
-                    nodejs = new NodeJSProcess();
-                }
-                program = new ProgramData();
-            }
-            programs.put(rootURL, program);
+        /**
+         * @param modified whether the files are being indexed with their editor modifications
+         */
+        FileBatch(boolean modified) {
+            this.modified = modified;
+        }
 
-            FileData fi = new FileData();
-            fi.program = program;
-            fi.relPath = indxbl.getRelativePath();
-            allFiles.put(snapshot.getSource().getFileObject(), fi);
+        /** Adds a file of the source root. */
+        void add(FileObject fileObj, Indexable indxbl) {
+            add(fileObj, indxbl.getRelativePath(), indxbl);
+        }
 
-            program.setFileSnapshot(fi.relPath, indxbl, snapshot, cntxt.checkForEditorModifications());
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        } finally {
-            lock.unlock();
+        /** Adds a file from outside the source root under a virtual path. */
+        void addExternal(FileObject fileObj, String virtualPath) {
+            add(fileObj, virtualPath, null);
         }
-    }
 
-    static void addExternalFile(Snapshot snapshot, String virtualPath, Context cntxt) {
-        lock.lock();
-        try {
-            URL rootURL = cntxt.getRootURI();
+        /**
+         * Adds a file from outside the source root under a virtual path, with text that is not
+         * that of the file on disk.
+         */
+        void addExternal(Snapshot snapshot, String virtualPath) {
+            add(snapshot.getSource().getFileObject(), virtualPath, null, null, snapshot);
+        }
 
-            ProgramData program = programs.get(rootURL);
-            if (program == null) {
-                if (nodejs == null) {
-                    nodejs = new NodeJSProcess();
-                }
-                program = new ProgramData();
-            }
-            programs.put(rootURL, program);
+        private void add(FileObject fileObj, String relPath, Indexable indxbl) {
+            File diskFile = modified ? null : getDiskFile(fileObj);
+            add(fileObj, relPath, indxbl, diskFile, diskFile == null ? Source.create(fileObj).createSnapshot() : null);
+        }
 
-            FileData fi = new FileData();
-            fi.program = program;
-            fi.relPath = virtualPath;
-            allFiles.put(snapshot.getSource().getFileObject(), fi);
+        private void add(FileObject fileObj, String relPath, Indexable indxbl, File diskFile, Snapshot snapshot) {
+            relPaths.add(relPath);
+            fileObjs.add(fileObj);
+            indexables.add(indxbl);
+            diskFiles.add(diskFile);
+            snapshots.add(snapshot);
+        }
 
-            program.setFileSnapshot(fi.relPath, null, snapshot, false);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        } finally {
-            lock.unlock();
+        boolean isEmpty() {
+            return relPaths.isEmpty();
         }
     }
 
-    static void removeFile(Indexable indxbl, Context cntxt) {
-        lock.lock();
+    private static ProgramData getOrCreateProgram(URL rootURL) throws Exception {
+        ProgramData program = getProgram(rootURL);
+        if (program != null) {
+            return program;
+        }
+        startLock.lock();
         try {
-            ProgramData program = programs.get(cntxt.getRootURI());
+            program = getProgram(rootURL);
             if (program != null) {
-                try {
-                    FileObject fileObj = program.removeFile(indxbl.getRelativePath());
-                    allFiles.remove(fileObj);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
+                return program;
             }
+            NodeJSProcess started = startWorker();
+            lock.lock();
+            try {
+                NodeJSProcess worker = started;
+                if (worker == null) {
+                    worker = workers[0];
+                    for (NodeJSProcess w: workers) {
+                        if (compareLoad(w, worker) < 0) {
+                            worker = w;
+                        }
+                    }
+                }
+                worker.programCount++;
+                program = new ProgramData(worker, nextProgId++, rootURL);
+                programs.put(rootURL, program);
+                return program;
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            startLock.unlock();
+        }
+    }
+
+    // Starts a process in a free slot, if there is one, and adds it to workers once it has
+    // started. Must hold startLock, and not lock: starting a process waits on nodejs.
+    private static NodeJSProcess startWorker() throws Exception {
+        int slot = -1;
+        lock.lock();
+        try {
+            for (int i = 0; i < workers.length && slot < 0; i++) {
+                if (workers[i] == null) {
+                    slot = i;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (slot < 0) {
+            return null;
+        }
+        NodeJSProcess worker = new NodeJSProcess(slot);
+        boolean first;
+        lock.lock();
+        try {
+            first = ! hasWorkers();
+            workers[slot] = worker;
+        } finally {
+            lock.unlock();
+        }
+        if (first) {
+            if (programIdleMillis > 0 || workerHeapBudget > 0) {
+                evictionTask.schedule((int) evictionCheckMillis);
+            }
+            watchdogTask.schedule(watchdogMillis);
+        }
+        return worker;
+    }
+
+    private static boolean hasWorkers() {
+        lock.lock();
+        try {
+            for (NodeJSProcess worker: workers) {
+                if (worker != null) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // New programs go to processes without a large program first, then to those with the fewest
+    // files, then to those with the smallest heap as last reported. Must hold lock.
+    private static int compareLoad(NodeJSProcess a, NodeJSProcess b) {
+        if ((a.largeProgramCount > 0) != (b.largeProgramCount > 0)) {
+            return a.largeProgramCount > 0 ? 1 : -1;
+        }
+        int c = Integer.compare(a.fileCount.get(), b.fileCount.get());
+        return c != 0 ? c : Long.compare(a.heapUsed, b.heapUsed);
+    }
+
+    // Called with the program lock held once the program has grown past dedicatedWorkerFiles.
+    // If it shares its process with other programs, it is moved to a free slot.
+    private static void checkProgramSize(URL rootURL, ProgramData program) {
+        NodeJSProcess current, target = null;
+        startLock.lock();
+        try {
+            lock.lock();
+            try {
+                if (program.large || programs.get(rootURL) != program) {
+                    return;
+                }
+                program.large = true;
+                current = program.nodejs;
+            } finally {
+                lock.unlock();
+            }
+            // The program can't move to another process while we hold its lock, and no other
+            // thread can take a free slot while we hold startLock
+            if (current.programCount > 1) {
+                target = startWorker();
+            }
+            NodeJSProcess unused = null;
+            lock.lock();
+            try {
+                if (programs.get(rootURL) != program) {
+                    unused = target; // removed while the new process started
+                    target = null;
+                } else if (target == null || program.nodejs != current) {
+                    // No free slot, or the process was restarted while the new one started
+                    program.nodejs.largeProgramCount++;
+                    unused = target;
+                    target = null;
+                } else {
+                    current.programCount--;
+                    target.programCount++;
+                    target.largeProgramCount++;
+                    program.nodejs = target;
+                }
+                if (unused != null) {
+                    workers[unused.slot] = null;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (unused != null) {
+                try {
+                    unused.close();
+                } catch (IOException e) {}
+            }
+            if (target == null) {
+                return;
+            }
+        } catch (Exception e) {
+            log.log(Level.INFO, "Could not start a worker for " + rootURL, e);
+            return;
+        } finally {
+            startLock.unlock();
+        }
+        log.log(Level.INFO, "Moving {0} ({1} files) to nodejs worker {2}",
+                new Object[] { rootURL, program.files.size(), target.slot });
+        program.moveFrom(current);
+    }
+
+    // Kills processes that have been working on one request for longer than requestTimeoutNanos.
+    // Their programs are then recreated in a new process by restartWorker.
+    private static void killHungWorkers() {
+        List<NodeJSProcess> current = new ArrayList<>();
+        lock.lock();
+        try {
+            for (NodeJSProcess worker: workers) {
+                if (worker != null) {
+                    current.add(worker);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (NodeJSProcess worker: current) {
+            long stalled = worker.stalledNanos();
+            if (stalled > requestTimeoutNanos) {
+                log.log(Level.WARNING, "nodejs worker {0} has not answered for {1}s; killing it",
+                        new Object[] { worker.slot, TimeUnit.NANOSECONDS.toSeconds(stalled) });
+                worker.kill();
+            }
+        }
+    }
+
+    // Replaces a process that died or was killed. Its programs are moved to the new process as
+    // evicted, so each is recreated from its files' paths and last sent texts. The ones that were
+    // loaded are recreated right away.
+    private static void restartWorker(NodeJSProcess dead) {
+        final List<ProgramData> reload = new ArrayList<>();
+        lock.lock();
+        try {
+            if (workers[dead.slot] != dead) {
+                return; // shut down on purpose, or already replaced
+            }
+            long now = System.currentTimeMillis();
+            while (! restartTimes.isEmpty() && now - restartTimes.peek() > restartWindowMillis) {
+                restartTimes.poll();
+            }
+            if (restartTimes.size() >= maxRestarts) {
+                log.log(Level.WARNING, "nodejs worker {0} failed after {1} restarts in the last {2} minutes; giving up: {3}",
+                        new Object[] { dead.slot, restartTimes.size(),
+                                       TimeUnit.MILLISECONDS.toMinutes(restartWindowMillis), dead.error });
+                return;
+            }
+            restartTimes.add(now);
+        } finally {
+            lock.unlock();
+        }
+        log.log(Level.WARNING, "nodejs worker {0} failed; restarting it: {1}", new Object[] { dead.slot, dead.error });
+        // Started without lock, since it waits on nodejs. Programs added to the dead process
+        // meanwhile fail their requests, and are moved below with the others.
+        NodeJSProcess fresh;
+        try {
+            fresh = new NodeJSProcess(dead.slot);
+        } catch (Exception e) {
+            log.log(Level.INFO, "Could not restart nodejs worker " + dead.slot, e);
+            return;
+        }
+        lock.lock();
+        try {
+            if (workers[dead.slot] != dead) {
+                // Its last program was removed while the new process started
+                try {
+                    fresh.close();
+                } catch (IOException e) {}
+                return;
+            }
+            fresh.programCount = dead.programCount;
+            fresh.largeProgramCount = dead.largeProgramCount;
+            workers[dead.slot] = fresh;
+            for (ProgramData program: programs.values()) {
+                if (program.nodejs == dead) {
+                    if (! program.evicted) {
+                        reload.add(program);
+                    }
+                    program.evicted = true;
+                    program.nodejs = fresh;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        try {
+            dead.close();
+        } catch (IOException e) {}
+        for (final ProgramData program: reload) {
+            RP.post(new Runnable() {
+                @Override
+                public void run() {
+                    program.lock.lock();
+                    try {
+                        program.rehydrate();
+                    } finally {
+                        program.lock.unlock();
+                    }
+                }
+            });
+        }
+    }
+
+    private static ProgramData getProgram(URL rootURL) {
+        lock.lock();
+        try {
+            return programs.get(rootURL);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // For tests: the process a program is loaded in, which changes when it is restarted
+    static Object workerOf(URL rootURL) {
+        ProgramData program = getProgram(rootURL);
+        return program == null ? null : program.nodejs;
+    }
+
+    // For tests: kills the process a program is loaded in, as killHungWorkers does
+    static void killWorker(URL rootURL) {
+        getProgram(rootURL).nodejs.kill();
+    }
+
+    // For tests: whether a program is dropped from nodejs
+    static boolean isEvicted(URL rootURL) {
+        return getProgram(rootURL).evicted;
+    }
+
+    // For tests: how many files the process a program is in has loaded, over all its programs
+    static int workerFileCount(URL rootURL) {
+        return getProgram(rootURL).nodejs.fileCount.get();
+    }
+
+    private static FileData getFileData(FileObject fileObj) {
+        lock.lock();
+        try {
+            return allFiles.get(fileObj);
         } finally {
             lock.unlock();
         }
     }
 
-    static final Convertor<JSONObject> errorConvertor = new Convertor<JSONObject>() {
+    /**
+     * Adds a batch of files, which may or may not be open in the editor. For each file that is
+     * not, and is on local disk, only its path is sent, and nodejs reads the file itself when it
+     * needs it.
+     */
+    static void addFiles(FileBatch batch, Context cntxt) {
+        addFiles(cntxt.getRootURI(), batch);
+    }
+
+    static void addFiles(URL rootURL, FileBatch batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        ProgramData program;
+        try {
+            program = getOrCreateProgram(rootURL);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        program.lock("addFiles");
+        try {
+            if (program.disposed) {
+                return;
+            }
+            program.addFiles(batch);
+            if (program.files.size() > dedicatedWorkerFiles) {
+                checkProgramSize(rootURL, program);
+            }
+        } finally {
+            program.lock.unlock();
+        }
+        lock.lock();
+        try {
+            if (programs.get(rootURL) == program) {
+                for (int i = 0; i < batch.relPaths.size(); i++) {
+                    FileData fi = new FileData();
+                    fi.program = program;
+                    fi.relPath = batch.relPaths.get(i);
+                    allFiles.put(batch.fileObjs.get(i), fi);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns the file for nodejs to read, or null if the text must be sent from here: when the
+    // file is open in the editor, which may hold unsaved changes, or is not on local disk. Files
+    // on disk are read as UTF-8.
+    private static File getDiskFile(FileObject fileObj) {
+        if (! readFromDisk || Source.create(fileObj).getDocument(false) != null) {
+            return null;
+        }
+        return FileUtil.toFile(fileObj);
+    }
+
+    static void removeFile(Indexable indxbl, Context cntxt) {
+        ProgramData program = getProgram(cntxt.getRootURI());
+        if (program == null) {
+            return;
+        }
+        FileObject fileObj;
+        program.lock("deleteFile");
+        try {
+            if (program.disposed) {
+                return;
+            }
+            fileObj = program.removeFile(indxbl.getRelativePath());
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            program.lock.unlock();
+        }
+        lock.lock();
+        try {
+            FileData fd = allFiles.get(fileObj);
+            if (fd != null && fd.program == program) {
+                allFiles.remove(fileObj);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Decodes a response straight from its JSON text into the structure its caller uses. The
+     * decoder is not called for a null response; the result is then null.
+     */
+    interface Decoder<T> {
+        T decode(JSONReader in) throws ParseException;
+    }
+
+    /**
+     * Decodes a list of spans, which nodejs sends as one flat array of offsets: start, end,
+     * start, end, ...
+     */
+    static final Decoder<int[]> spansDecoder = new Decoder<int[]>() {
         @Override
-        public ErrorsCache.ErrorKind getKind(JSONObject err) {
-            int category = ((Number) err.get("category")).intValue();
-            return category == 0 ? ErrorsCache.ErrorKind.WARNING
-                                 : ErrorsCache.ErrorKind.ERROR;
+        public int[] decode(JSONReader in) throws ParseException {
+            return in.nextIntArray();
         }
+    };
+
+    static class Diagnostic {
+        int line, start, length, category, code;
+        String messageText;
+    }
+
+    static class Diagnostics {
+        final List<Diagnostic> errs = new ArrayList<>();
+        String metaError;
+        // The key to save these under in DiagnosticsCache, if the program has not changed since
+        // getDiagnosticsKeys was last called
+        String key;
+    }
+
+    static final Decoder<Diagnostics> diagnosticsDecoder = new Decoder<Diagnostics>() {
         @Override
-        public int getLineNumber(JSONObject err) {
-            return ((Number) err.get("line")).intValue();
+        public Diagnostics decode(JSONReader in) throws ParseException {
+            Diagnostics diags = new Diagnostics();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "errs":
+                        in.beginArray();
+                        while (in.hasNext()) {
+                            diags.errs.add(decodeDiagnostic(in));
+                        }
+                        in.endArray();
+                        break;
+                    case "metaError":
+                        diags.metaError = in.nextNull() ? null : in.nextString();
+                        break;
+                    case "key":
+                        diags.key = in.nextNull() ? null : in.nextString();
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            return diags;
+        }
+
+        private Diagnostic decodeDiagnostic(JSONReader in) throws ParseException {
+            Diagnostic err = new Diagnostic();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "line": err.line = in.nextInt(); break;
+                    case "start": err.start = in.nextInt(); break;
+                    case "length": err.length = in.nextInt(); break;
+                    case "category": err.category = in.nextInt(); break;
+                    case "code": err.code = in.nextInt(); break;
+                    case "messageText": err.messageText = in.nextString(); break;
+                    default: in.skipValue();
+                }
+            }
+            in.endObject();
+            return err;
+        }
+    };
+
+    static final Decoder<List<Diagnostics>> diagnosticsListDecoder = new Decoder<List<Diagnostics>>() {
+        @Override
+        public List<Diagnostics> decode(JSONReader in) throws ParseException {
+            List<Diagnostics> list = new ArrayList<>();
+            in.beginArray();
+            while (in.hasNext()) {
+                list.add(diagnosticsDecoder.decode(in));
+            }
+            in.endArray();
+            return list;
+        }
+    };
+
+    // An array of strings, any of which may be null
+    static final Decoder<List<String>> stringListDecoder = new Decoder<List<String>>() {
+        @Override
+        public List<String> decode(JSONReader in) throws ParseException {
+            List<String> strings = new ArrayList<>();
+            in.beginArray();
+            while (in.hasNext()) {
+                strings.add(in.nextNull() ? null : in.nextString());
+            }
+            in.endArray();
+            return strings;
+        }
+    };
+
+    static final Convertor<Diagnostic> errorConvertor = new Convertor<Diagnostic>() {
+        @Override
+        public ErrorsCache.ErrorKind getKind(Diagnostic err) {
+            return err.category == 0 ? ErrorsCache.ErrorKind.WARNING
+                                     : ErrorsCache.ErrorKind.ERROR;
+        }
+        @Override
+        public int getLineNumber(Diagnostic err) {
+            return err.line;
         }
         @Override
-        public String getMessage(JSONObject err) {
-            return (String) err.get("messageText");
+        public String getMessage(Diagnostic err) {
+            return err.messageText;
         }
     };
 
@@ -351,66 +1651,382 @@ public class TSService {
         final ProgramData program;
         final Object currentUpdate;
         final Indexable[] files;
-        lock.lock();
+        final List<String> edited, recent;
+        program = getProgram(rootURI);
+        if (program == null) {
+            return;
+        }
+        program.lock.lock();
         try {
-            program = programs.get(rootURI);
-            if (program == null || ! program.needErrorsUpdate) {
+            if (! program.needErrorsUpdate) {
                 return;
             }
             program.needErrorsUpdate = false;
+            program.cancelErrorsUpdate();
             program.currentErrorsUpdate = currentUpdate = new Object();
             files = program.indexables.values().toArray(new Indexable[0]);
+            edited = new ArrayList<>(program.editedFiles);
+            recent = new ArrayList<>(program.recentFiles.keySet());
         } finally {
-            lock.unlock();
+            program.lock.unlock();
         }
         new Runnable() {
             RequestProcessor.Task task = RP.create(this);
             ProgressHandle progress = ProgressHandleFactory.createHandle("TypeScript error checking", task);
+            // The files to check, leaving out configuration and library declarations
+            final List<Indexable> toCheck = new ArrayList<>();
+            final List<String> fileNames = new ArrayList<>();
+            // The edited files and those that import them, and how many of those are yet to be
+            // published, for TSMetrics
+            boolean[] dependent;
+            int dependentsLeft;
+            long t1;
             @Override
             public void run() {
-                progress.start(files.length);
+                progress.start();
+                DiagnosticsCache cache = null;
                 try {
-                    long t1 = System.currentTimeMillis();
-                    for (int i = 0; i < files.length; i++) {
-                        Indexable indexable = files[i];
+                    t1 = System.currentTimeMillis();
+                    for (Indexable indexable: files) {
                         String fileName = indexable.getRelativePath();
-                        progress.progress(fileName, i);
-                        if (fileName.endsWith(".json") || fileName.contains("node_modules") || fileName.contains("typings")) {
-                            continue;
+                        if (! (fileName.endsWith(".json") || fileName.contains("node_modules") || fileName.contains("typings"))) {
+                            toCheck.add(indexable);
+                            fileNames.add(fileName);
+                        }
+                    }
+                    if (cacheDiagnostics) {
+                        cache = getDiagnosticsCache();
+                    }
+                    List<String> keys;
+                    try {
+                        keys = getStrings("getDiagnosticsKeys", fileNames);
+                    } catch (CancellationException e) {
+                        return; // this task has been superseded
+                    }
+                    // Only the files whose key has changed since their diagnostics were last
+                    // published: those that were edited, that depend on an edited file, or all of
+                    // them if something global changed
+                    List<Integer> changed = new ArrayList<>();
+                    program.lock.lockInterruptibly();
+                    try {
+                        for (int i = 0; i < fileNames.size(); i++) {
+                            String key = keys != null ? keys.get(i) : null;
+                            if (key == null || ! key.equals(program.publishedKeys.get(fileNames.get(i)))) {
+                                changed.add(i);
+                            }
+                        }
+                    } finally {
+                        program.lock.unlock();
+                    }
+                    try {
+                        changed = prioritize(changed);
+                    } catch (CancellationException e) {
+                        return; // this task has been superseded
+                    }
+                    progress.switchToDeterminate(changed.size());
+                    // Diagnostics saved under the same key need no checking
+                    List<Integer> hits = new ArrayList<>(), toRequest = new ArrayList<>();
+                    List<Diagnostics> hitErrors = new ArrayList<>();
+                    for (int i: changed) {
+                        String key = keys != null ? keys.get(i) : null;
+                        Diagnostics errors = key != null && cache != null ? cache.get(fileNames.get(i), key) : null;
+                        if (errors != null) {
+                            errors.key = key;
+                            hits.add(i);
+                            hitErrors.add(errors);
+                        } else {
+                            toRequest.add(i);
                         }
-                        lock.lockInterruptibly();
+                    }
+                    if (! publish(hits, hitErrors)) {
+                        return; // this task has been superseded
+                    }
+                    int done = hits.size();
+                    progress.progress(done);
+                    // The rest are checked a batch at a time, each result published as soon as its
+                    // batch is back. nodejs may return fewer results than asked for if it runs out
+                    // of time; the rest go in the next batch.
+                    int next = 0;
+                    while (next < toRequest.size()) {
+                        List<Integer> batch = toRequest.subList(next, Math.min(next + errorsBatchFiles, toRequest.size()));
+                        List<String> batchNames = new ArrayList<>();
+                        for (int i: batch) {
+                            batchNames.add(fileNames.get(i));
+                        }
+                        PendingCall call;
+                        program.lock.lockInterruptibly();
                         try {
                             if (program.currentErrorsUpdate != currentUpdate) {
                                 return; // this task has been superseded
                             }
-                            JSONObject errors = (JSONObject) program.call("getDiagnostics", fileName);
-                            if (errors != null) {
-                                ErrorsCache.setErrors(rootURI, indexable,
-                                        (List<JSONObject>) errors.get("errs"), errorConvertor);
-                            }
+                            call = program.errorsCall = program.send(Priority.BACKGROUND, "getDiagnosticsBatch", batchNames, errorsBatchMillis);
+                            call.decoder = diagnosticsListDecoder;
                         } finally {
-                            lock.unlock();
+                            program.lock.unlock();
+                        }
+                        List<Diagnostics> results;
+                        try {
+                            @SuppressWarnings("unchecked")
+                            List<Diagnostics> list = (List<Diagnostics>) call.get();
+                            results = list;
+                        } catch (CancellationException e) {
+                            return; // this task has been superseded
+                        } catch (ExecutionException e) {
+                            // A file that fails comes back with a metaError, so this is the
+                            // program itself failing, which checking the others again won't fix
+                            log.log(Level.INFO, "Exception in getDiagnosticsBatch for " + rootURI, e.getCause());
+                            return;
+                        }
+                        if (results.isEmpty()) {
+                            // nodejs checks at least one file of each batch, however small its
+                            // budget, so the loop would never advance
+                            log.log(Level.INFO, "getDiagnosticsBatch for {0} returned no results", rootURI);
+                            return;
+                        }
+                        for (int k = 0; k < results.size(); k++) {
+                            Diagnostics errors = results.get(k);
+                            if (errors.key != null && cache != null) {
+                                cache.put(batchNames.get(k), errors.key, errors);
+                            }
+                        }
+                        if (! publish(batch.subList(0, results.size()), results)) {
+                            return; // this task has been superseded
                         }
+                        next += results.size();
+                        done += results.size();
+                        progress.progress(batchNames.get(results.size() - 1), done);
+                    }
+                    if (cache != null) {
+                        cache.retainAll(fileNames);
+                        // Only once the update is complete: one that is superseded leaves the
+                        // saving to the task that supersedes it
+                        cache.save();
                     }
-                    log.log(Level.FINE, "updateErrors for {0} completed in {1}ms",
-                            new Object[] { rootURI, System.currentTimeMillis() - t1 });
+                    program.lock.lockInterruptibly();
+                    try {
+                        program.editedFiles.removeAll(edited);
+                    } finally {
+                        program.lock.unlock();
+                    }
+                    log.log(Level.FINE, "updateErrors for {0} completed in {1}ms: {2} of {3} files changed, {4} of those from the cache",
+                            new Object[] { rootURI, System.currentTimeMillis() - t1, changed.size(), toCheck.size(), hits.size() });
+                    TSMetrics.recordErrorsUpdate(rootURI, changed.size(),
+                            TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - t1));
                 } catch (InterruptedException e) {
                     log.log(Level.INFO, "updateErrors for {0} cancelled by user", rootURI);
                 } finally {
                     progress.finish();
                 }
             }
+
+            // Queues the diagnostics of the files at the given indexes for ErrorsCache, and records
+            // their keys as published. Returns false if this task has been superseded.
+            private boolean publish(List<Integer> indexes, List<Diagnostics> results) throws InterruptedException {
+                if (indexes.isEmpty()) {
+                    return true;
+                }
+                program.lock.lockInterruptibly();
+                try {
+                    if (program.currentErrorsUpdate != currentUpdate) {
+                        return false;
+                    }
+                    for (int k = 0; k < indexes.size(); k++) {
+                        int i = indexes.get(k);
+                        Diagnostics errors = results.get(k);
+                        String fileName = fileNames.get(i);
+                        program.errorsPublisher.publish(toCheck.get(i), errors);
+                        if (errors.key != null && errors.metaError == null) {
+                            program.publishedKeys.put(fileName, errors.key);
+                        } else {
+                            program.publishedKeys.remove(fileName);
+                        }
+                        if (dependent[i] && --dependentsLeft == 0) {
+                            TSMetrics.recordDependentsChecked(rootURI,
+                                    TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - t1));
+                        }
+                    }
+                    return true;
+                } finally {
+                    program.lock.unlock();
+                }
+            }
+
+            // Orders the files at the given indexes: those open in the editor first, then the
+            // edited files and those that import them, then the other recently changed files, then
+            // the rest as the indexer gave them. Whatever was published before this task is kept,
+            // so a task that supersedes another goes on with what is left, in its own order.
+            private List<Integer> prioritize(List<Integer> changed) throws InterruptedException {
+                dependent = new boolean[fileNames.size()];
+                Set<String> importers = new HashSet<>(edited);
+                if (! edited.isEmpty()) {
+                    List<String> names = getStrings("getImporters", edited);
+                    if (names != null) {
+                        importers.addAll(names);
+                    }
+                }
+                Set<String> open = new HashSet<>();
+                for (JTextComponent comp: EditorRegistry.componentList()) {
+                    Source source = Source.create(comp.getDocument());
+                    FileObject fileObj = source != null ? source.getFileObject() : null;
+                    FileData fd = fileObj != null ? getFileData(fileObj) : null;
+                    if (fd != null && fd.program == program) {
+                        open.add(fd.relPath);
+                    }
+                }
+                Set<String> recentSet = new HashSet<>(recent);
+                List<List<Integer>> tiers = new ArrayList<>();
+                for (int t = 0; t < 4; t++) {
+                    tiers.add(new ArrayList<Integer>());
+                }
+                for (int i: changed) {
+                    String fileName = fileNames.get(i);
+                    dependent[i] = importers.contains(fileName);
+                    if (dependent[i]) {
+                        dependentsLeft++;
+                    }
+                    tiers.get(open.contains(fileName) ? 0 : dependent[i] ? 1 : recentSet.contains(fileName) ? 2 : 3).add(i);
+                }
+                if (! prioritizeErrors) {
+                    return changed;
+                }
+                List<Integer> ordered = new ArrayList<>(changed.size());
+                for (List<Integer> tier: tiers) {
+                    ordered.addAll(tier);
+                }
+                return ordered;
+            }
+
+            // The result of a request that takes and returns lists of file names or keys, or null
+            // if it failed. Throws CancellationException if this task has been superseded.
+            private List<String> getStrings(String method, List<String> fileNames) throws InterruptedException {
+                PendingCall call;
+                program.lock.lockInterruptibly();
+                try {
+                    if (program.currentErrorsUpdate != currentUpdate) {
+                        throw new CancellationException();
+                    }
+                    call = program.errorsCall = program.send(Priority.BACKGROUND, method, fileNames);
+                    call.decoder = stringListDecoder;
+                } finally {
+                    program.lock.unlock();
+                }
+                try {
+                    @SuppressWarnings("unchecked")
+                    List<String> strings = (List<String>) call.get();
+                    return strings;
+                } catch (ExecutionException e) {
+                    log.log(Level.INFO, "Exception in " + method, e.getCause());
+                    return null;
+                }
+            }
+
+            private DiagnosticsCache getDiagnosticsCache() throws InterruptedException {
+                program.lock.lockInterruptibly();
+                try {
+                    if (program.diagnosticsCache != null) {
+                        return program.diagnosticsCache;
+                    }
+                } finally {
+                    program.lock.unlock();
+                }
+                // Read without the lock, since that may take a while for a large project
+                DiagnosticsCache cache = DiagnosticsCache.load(rootURI);
+                program.lock.lockInterruptibly();
+                try {
+                    if (program.diagnosticsCache == null) {
+                        program.diagnosticsCache = cache;
+                    }
+                    return program.diagnosticsCache;
+                } finally {
+                    program.lock.unlock();
+                }
+            }
         }.task.schedule(0);
     }
 
+    // For TSMetrics: how much the Java side keeps for the open programs, and roughly how much heap
+    // that takes. The texts are those of files open in the editor or not on local disk, which are
+    // kept to send edits as deltas. This is asked for over JMX and logged when a process shuts
+    // down, so it waits only briefly for each lock, and leaves out the programs that stay busy.
+    static String footprint() {
+        List<ProgramData> list;
+        int fileDataCount;
+        long bytes = 0;
+        try {
+            if (! lock.tryLock(footprintWaitMillis, TimeUnit.MILLISECONDS)) {
+                return "unknown, TSService.lock is busy";
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "unknown, interrupted";
+        }
+        try {
+            list = new ArrayList<>(programs.values());
+            fileDataCount = allFiles.size();
+            // The FileObjects belong to the IDE, and the paths are counted with the programs
+            bytes += fileDataCount * (MAP_ENTRY_BYTES + OBJECT_BYTES);
+        } finally {
+            lock.unlock();
+        }
+        int counted = 0, files = 0, diskFiles = 0, texts = 0;
+        long chars = 0;
+        for (ProgramData program: list) {
+            try {
+                if (! program.lock.tryLock(footprintWaitMillis, TimeUnit.MILLISECONDS)) {
+                    continue;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            try {
+                counted++;
+                files += program.files.size();
+                diskFiles += program.diskFiles.size();
+                texts += program.fileTexts.size();
+                for (String relPath: program.files.keySet()) {
+                    bytes += MAP_ENTRY_BYTES + stringBytes(relPath);
+                }
+                bytes += program.indexables.size() * MAP_ENTRY_BYTES;
+                for (String text: program.fileTexts.values()) {
+                    chars += text.length();
+                    bytes += MAP_ENTRY_BYTES + stringBytes(text);
+                }
+                for (String[] pathAndVersion: program.diskFiles.values()) {
+                    bytes += MAP_ENTRY_BYTES + OBJECT_BYTES + 8;
+                    for (String s: pathAndVersion) {
+                        bytes += s == null ? 0 : stringBytes(s);
+                    }
+                }
+                for (String key: program.publishedKeys.values()) {
+                    bytes += MAP_ENTRY_BYTES + stringBytes(key);
+                }
+            } finally {
+                program.lock.unlock();
+            }
+        }
+        return String.format("%d programs with %d files (%d in allFiles), %d read by nodejs from disk, %d texts of %d chars in total; about %d KB%s",
+                counted, files, fileDataCount, diskFiles, texts, chars, bytes / 1024,
+                counted < list.size() ? String.format(" (%d busy programs not counted)", list.size() - counted) : "");
+    }
+
+    // Rough sizes for footprint, as on a 64-bit JVM with compressed references
+    private static final int OBJECT_BYTES = 16, MAP_ENTRY_BYTES = 36;
+    private static final int footprintWaitMillis = 100;
+
+    private static long stringBytes(String s) {
+        return 24 + OBJECT_BYTES + 2L * s.length();
+    }
+
     static void removeProgram(URL rootURL) {
+        ProgramData program;
+        NodeJSProcess unused = null;
         lock.lock();
         try {
-            ProgramData program = programs.remove(rootURL);
+            program = programs.remove(rootURL);
             if (program == null) {
                 return;
             }
-            program.currentErrorsUpdate = null; // stop any updateErrors task
 
             Iterator<FileData> iter = allFiles.values().iterator();
             while (iter.hasNext()) {
@@ -420,101 +2036,250 @@ public class TSService {
                 }
             }
 
-            try {
-                program.dispose();
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+            NodeJSProcess worker = program.nodejs;
+            worker.programCount--;
+            if (program.large) {
+                worker.largeProgramCount--;
+            }
+            if (worker.programCount == 0) {
+                workers[worker.slot] = null;
+                unused = worker;
             }
+        } finally {
+            lock.unlock();
+        }
 
-            if (programs.isEmpty()) {
-                log.info("No programs left; shutting down nodejs");
-                try {
-                    nodejs.close();
-                } catch (IOException e) {}
-                nodejs = null;
+        program.lock.lock();
+        try {
+            program.disposed = true;
+            program.cancelErrorsUpdate(); // stop any updateErrors task
+            program.dispose();
+            TSMetrics.programRemoved(program.progId);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            program.lock.unlock();
+        }
+
+        if (unused != null) {
+            log.log(Level.INFO, "No programs left on nodejs worker {0}; shutting it down", unused.slot);
+            log.info(Priority.latencySummary());
+            log.info(TSMetrics.dump());
+            try {
+                unused.close();
+            } catch (IOException e) {}
+        }
+    }
+
+    // Drops from nodejs the programs that have been idle for programIdleMillis, and on each
+    // process whose heap is over workerHeapBudget, the least recently used of its other programs.
+    // Programs in the middle of error checking are left alone. A query that races with the
+    // eviction reloads the program.
+    static void evictPrograms() {
+        evictPrograms(programIdleMillis);
+    }
+
+    static void evictPrograms(long idleMillis) {
+        long now = System.currentTimeMillis();
+        Map<ProgramData, Long> candidates = new HashMap<>();
+        lock.lock();
+        try {
+            Map<NodeJSProcess, List<ProgramData>> loaded = new HashMap<>();
+            for (ProgramData program: programs.values()) {
+                if (program.evicted) {
+                    continue;
+                }
+                if (idleMillis > 0 && now - program.lastUsed > idleMillis) {
+                    candidates.put(program, program.lastUsed);
+                } else {
+                    List<ProgramData> list = loaded.get(program.nodejs);
+                    if (list == null) {
+                        loaded.put(program.nodejs, list = new ArrayList<>());
+                    }
+                    list.add(program);
+                }
+            }
+            for (NodeJSProcess worker: workers) {
+                if (worker == null) {
+                    continue;
+                }
+                List<ProgramData> list = loaded.get(worker);
+                log.log(Level.FINE, "nodejs worker {0}: heap {1}MB, {2} programs, {3} loaded",
+                        new Object[] { worker.slot, worker.heapUsed >> 20, worker.programCount,
+                                       list == null ? 0 : list.size() });
+                if (workerHeapBudget > 0 && worker.heapUsed > workerHeapBudget && list != null && list.size() > 1) {
+                    ProgramData lru = list.get(0);
+                    for (ProgramData program: list) {
+                        if (program.lastUsed < lru.lastUsed) {
+                            lru = program;
+                        }
+                    }
+                    if (now - lru.lastUsed > evictionCheckMillis) {
+                        candidates.put(lru, lru.lastUsed);
+                    }
+                }
             }
         } finally {
             lock.unlock();
         }
+
+        for (Map.Entry<ProgramData, Long> entry: candidates.entrySet()) {
+            ProgramData program = entry.getKey();
+            program.lock.lock();
+            try {
+                if (program.disposed || program.evicted || program.lastUsed != entry.getValue()
+                        || program.errorsCall != null && ! program.errorsCall.isDone()) {
+                    continue;
+                }
+                log.log(Level.INFO, "Dropping program {0} ({1} files) from nodejs worker {2}, heap {3}MB",
+                        new Object[] { program.rootURL, program.files.size(), program.nodejs.slot,
+                                       program.nodejs.heapUsed >> 20 });
+                program.evict();
+            } finally {
+                program.lock.unlock();
+            }
+        }
     }
 
     static void updateFile(Snapshot snapshot) {
-        lock.lock();
+        FileData fd = getFileData(snapshot.getSource().getFileObject());
+        if (fd == null) {
+            return;
+        }
+        fd.program.lastUsed = System.currentTimeMillis();
+        fd.program.lock("editFile");
         try {
-            FileData fd = allFiles.get(snapshot.getSource().getFileObject());
-            if (fd != null) {
+            if (! fd.program.disposed) {
                 fd.program.setFileSnapshot(fd.relPath, null, snapshot, true);
             }
         } finally {
-            lock.unlock();
+            fd.program.lock.unlock();
         }
     }
 
     static List<DefaultError> getDiagnostics(Snapshot snapshot) {
         FileObject fo = snapshot.getSource().getFileObject();
-        lock.lock();
+        long t = System.nanoTime();
+        FileData fd = getFileData(fo);
+        if (fd == null) {
+            return Arrays.asList(new DefaultError(null,
+                "Unknown source root for file " + fo.getPath(),
+                null, fo, 0, 1, true, Severity.ERROR));
+        }
+        PendingCall call = fd.program.send(Priority.INTERACTIVE, "getDiagnostics", fd.relPath);
+        TSMetrics.recordLockWait("getDiagnostics", fd.program.progId, System.nanoTime() - t);
+        call.decoder = diagnosticsDecoder;
+
+        Diagnostics diags;
+        String callError = null;
         try {
-            FileData fd = allFiles.get(fo);
-            if (fd == null) {
-                return Arrays.asList(new DefaultError(null,
-                    "Unknown source root for file " + fo.getPath(),
-                    null, fo, 0, 1, true, Severity.ERROR));
-            }
-
-            JSONObject diags = (JSONObject) fd.program.call("getDiagnostics", fd.relPath);
-            if (diags == null) {
-                return Arrays.asList(new DefaultError(null,
-                    nodejs.error != null ? nodejs.error : "Error in getDiagnostics",
-                    null, fo, 0, 1, true, Severity.ERROR));
-            }
-
-            List<DefaultError> errors = new ArrayList<>();
-            String metaError = (String) diags.get("metaError");
-            if (metaError != null) {
-                errors.add(new DefaultError(null, metaError, null, fo, 0, 1, true, Severity.ERROR));
-            }
-            for (JSONObject err: (List<JSONObject>) diags.get("errs")) {
-                int start = ((Number) err.get("start")).intValue();
-                int length = ((Number) err.get("length")).intValue();
-                String messageText = (String) err.get("messageText");
-                int category = ((Number) err.get("category")).intValue();
-                //int code = ((Number) err.get("code")).intValue();
-                errors.add(new DefaultError(null, messageText, null,
-                        fo, start, start + length, false,
-                        category == 0 ? Severity.WARNING : Severity.ERROR));
-            }
-            return errors;
-        } finally {
-            lock.unlock();
+            diags = (Diagnostics) call.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Collections.emptyList();
+        } catch (CancellationException e) {
+            return Collections.emptyList();
+        } catch (ExecutionException e) {
+            log.log(Level.INFO, "Exception in getDiagnostics", e.getCause());
+            diags = null;
+            callError = e.getCause().getMessage();
+        }
+        if (diags == null) {
+            return Arrays.asList(new DefaultError(null,
+                callError != null ? callError : "Error in getDiagnostics",
+                null, fo, 0, 1, true, Severity.ERROR));
+        }
+
+        List<DefaultError> errors = new ArrayList<>();
+        if (diags.metaError != null) {
+            errors.add(new DefaultError(null, diags.metaError, null, fo, 0, 1, true, Severity.ERROR));
+        }
+        for (Diagnostic err: diags.errs) {
+            errors.add(new DefaultError(null, err.messageText, null,
+                    fo, err.start, err.start + err.length, false,
+                    err.category == 0 ? Severity.WARNING : Severity.ERROR));
         }
+        return errors;
     }
 
     static Object call(String method, FileObject fileObj, Object... args) {
-        lock.lock();
+        return await(callAsync(method, fileObj, args));
+    }
+
+    static <T> T call(Decoder<T> decoder, String method, FileObject fileObj, Object... args) {
+        return await(callAsync(decoder, method, fileObj, args));
+    }
+
+    /**
+     * Waits for the result of {@link #callAsync}. Returns null if the call failed or was cancelled.
+     */
+    static <T> T await(Future<T> call) {
         try {
-            FileData fd = allFiles.get(fileObj);
-            if (fd == null) {
-                return null;
-            }
-            Object[] filenameAndArgs = new Object[args.length + 1];
-            filenameAndArgs[0] = fd.relPath;
-            System.arraycopy(args, 0, filenameAndArgs, 1, args.length);
-            Object ret = fd.program.call(method, filenameAndArgs);
-            // Translate file names back to file objects
-            if (ret instanceof JSONArray) {
-                for (Object item: (JSONArray) ret) {
-                    if (item instanceof JSONObject) {
-                        JSONObject obj = (JSONObject) item;
-                        Object fileName = obj.get("fileName");
-                        if (fileName instanceof String) {
-                            obj.put("fileObject", fd.program.getFile((String) fileName));
-                        }
+            return call.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (CancellationException e) {
+            return null;
+        } catch (ExecutionException e) {
+            log.log(Level.INFO, "Exception in nodejs call", e.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * Sends a request to the language service without waiting for the response. No lock is held
+     * while waiting, so several requests can be in flight at once.
+     * The result is null if the file is not part of any program.
+     */
+    static Future<Object> callAsync(String method, FileObject fileObj, Object... args) {
+        return callAsync(null, method, fileObj, args);
+    }
+
+    /**
+     * Like {@link #callAsync(String, FileObject, Object...)}, but the response is decoded by the
+     * given decoder.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> Future<T> callAsync(Decoder<T> decoder, String method, FileObject fileObj, Object... args) {
+        long t = System.nanoTime();
+        FileData fd = getFileData(fileObj);
+        if (fd == null) {
+            PendingCall call = new PendingCall(-1, Priority.INTERACTIVE);
+            call.finish('R', "null", null);
+            return (Future<T>) (Future<?>) call;
+        }
+        Object[] filenameAndArgs = new Object[args.length + 1];
+        filenameAndArgs[0] = fd.relPath;
+        System.arraycopy(args, 0, filenameAndArgs, 1, args.length);
+        PendingCall call = fd.program.send(Priority.INTERACTIVE, method, filenameAndArgs);
+        TSMetrics.recordLockWait(method, fd.program.progId, System.nanoTime() - t);
+        call.decoder = decoder;
+        call.program = fd.program;
+        return (Future<T>) (Future<?>) call;
+    }
+
+    /**
+     * Finds a file by the name the language service uses for it, in the program that contains
+     * another file. For decoders, which see file names rather than file objects.
+     */
+    static FileObject findFile(FileObject fileInProgram, String fileName) {
+        FileData fd = getFileData(fileInProgram);
+        return fd != null ? fd.program.getFile(fileName) : null;
+    }
+
+    // Translate file names back to file objects
+    private static void translateFileNames(ProgramData program, Object ret) {
+        if (ret instanceof JSONArray) {
+            for (Object item: (JSONArray) ret) {
+                if (item instanceof JSONObject) {
+                    JSONObject obj = (JSONObject) item;
+                    Object fileName = obj.get("fileName");
+                    if (fileName instanceof String) {
+                        obj.put("fileObject", program.getFile((String) fileName));
                     }
                 }
             }
-            return ret;
-        } finally {
-            lock.unlock();
         }
     }
 }
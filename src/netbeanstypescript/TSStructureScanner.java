@@ -131,7 +131,7 @@ public class TSStructureScanner implements StructureScanner {
         }
     }
 
-    private List<TSStructureItem> convertStructureItems(TSStructureItem parent, Object arr) {
+    List<TSStructureItem> convertStructureItems(TSStructureItem parent, Object arr) {
         if (arr == null) {
             return Collections.emptyList();
         }
@@ -159,15 +159,13 @@ public class TSStructureScanner implements StructureScanner {
 
     @Override
     public Map<String, List<OffsetRange>> folds(ParserResult pr) {
-        Object arr = TSService.call("getFolds", pr.getSnapshot().getSource().getFileObject());
-        if (arr == null) {
+        int[] spans = TSService.call(TSService.spansDecoder, "getFolds", pr.getSnapshot().getSource().getFileObject());
+        if (spans == null) {
             return Collections.emptyMap();
         }
-        List<OffsetRange> ranges = new ArrayList<>();
-        for (JSONObject span: (List<JSONObject>) arr) {
-            ranges.add(new OffsetRange(
-                ((Number) span.get("start")).intValue(),
-                ((Number) span.get("end")).intValue()));
+        List<OffsetRange> ranges = new ArrayList<>(spans.length / 2);
+        for (int i = 0; i < spans.length; i += 2) {
+            ranges.add(new OffsetRange(spans[i], spans[i + 1]));
         }
         return Collections.singletonMap("codeblocks", ranges);
     }
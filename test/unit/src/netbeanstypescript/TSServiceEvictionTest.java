@@ -0,0 +1,161 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2015 Everlaw. All rights reserved.
+ *
+ * Oracle and Java are registered trademarks of Oracle and/or its affiliates.
+ * Other names may be trademarks of their respective owners.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common
+ * Development and Distribution License("CDDL") (collectively, the
+ * "License"). You may not use this file except in compliance with the
+ * License. You can obtain a copy of the License at
+ * http://www.netbeans.org/cddl-gplv2.html
+ * or nbbuild/licenses/CDDL-GPL-2-CP. See the License for the
+ * specific language governing permissions and limitations under the
+ * License.  When distributing the software, include this License Header
+ * Notice in each file and include the License file at
+ * nbbuild/licenses/CDDL-GPL-2-CP.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the GPL Version 2 section of the License file that
+ * accompanied this code. If applicable, add the following below the
+ * License Header, with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ *
+ * If you wish your version of this file to be governed by only the CDDL
+ * or only the GPL Version 2, indicate your decision by adding
+ * "[Contributor] elects to include this software in this distribution
+ * under the [CDDL or GPL Version 2] license." If you do not indicate a
+ * single choice of license, a recipient has the option to distribute
+ * your version of this file under either the CDDL, the GPL Version 2 or
+ * to extend the choice of license to its licensees as provided above.
+ * However, if you add GPL Version 2 code and therefore, elected the GPL
+ * Version 2 license, then the option applies only if the new code is
+ * made subject to such option by the copyright holder.
+ */
+package netbeanstypescript;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.Test;
+import org.netbeans.junit.NbModuleSuite;
+import org.netbeans.junit.NbTestCase;
+
+/**
+ * Evicts idle programs over and over while other threads query them, and checks that every
+ * query reloads its program and gets the right diagnostics, and that the file counts TSService
+ * balances its programs by stay in step.
+ *
+ * @author jeffrey
+ */
+public class TSServiceEvictionTest extends NbTestCase {
+
+    public TSServiceEvictionTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return NbModuleSuite.createConfiguration(TSServiceEvictionTest.class)
+                .gui(false).clusters(".*").enableModules("netbeanstypescript").suite();
+    }
+
+    private final List<TestProject> projects = new ArrayList<>();
+
+    @Override
+    protected void setUp() throws Exception {
+        clearWorkDir();
+        for (int i = 0; i < 2; i++) {
+            TestProject project = new TestProject(new File(getWorkDir(), "p" + i), 200);
+            project.load();
+            projects.add(project);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (TestProject project: projects) {
+            TSService.removeProgram(project.rootURL);
+        }
+    }
+
+    public void testQueriesDuringEviction() throws Exception {
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicInteger queries = new AtomicInteger();
+        final Queue<Throwable> failures = new ConcurrentLinkedQueue<>();
+        List<Thread> threads = new ArrayList<>();
+        for (final TestProject project: projects) {
+            for (int i = 0; i < 2; i++) {
+                final Random random = new Random(threads.size());
+                Thread thread = new Thread("query " + project.root.getNameExt() + " " + i) {
+                    @Override
+                    public void run() {
+                        try {
+                            while (! stop.get()) {
+                                project.assertBroken(60);
+                                queries.incrementAndGet();
+                                Thread.sleep(random.nextInt(6));
+                            }
+                        } catch (Throwable t) {
+                            failures.add(t);
+                        }
+                    }
+                };
+                threads.add(thread);
+                thread.start();
+            }
+        }
+
+        // Evict whatever has been idle for a millisecond, so that queries keep arriving just
+        // before, during and just after an eviction
+        int evictions = 0;
+        boolean[] wasEvicted = new boolean[projects.size()];
+        long deadline = System.currentTimeMillis() + 60000;
+        while (evictions < 50 && failures.isEmpty() && System.currentTimeMillis() < deadline) {
+            TSService.evictPrograms(1);
+            for (int i = 0; i < projects.size(); i++) {
+                boolean evicted = TSService.isEvicted(projects.get(i).rootURL);
+                if (evicted && ! wasEvicted[i]) {
+                    evictions++;
+                }
+                wasEvicted[i] = evicted;
+            }
+            Thread.sleep(2);
+        }
+        stop.set(true);
+        for (Thread thread: threads) {
+            thread.join();
+        }
+        for (Throwable t: failures) {
+            throw new AssertionError(t);
+        }
+        assertTrue("no program was evicted", evictions > 0);
+        assertTrue("no queries were answered", queries.get() > 0);
+
+        // Each process counts the files of exactly the programs loaded in it
+        for (TestProject project: projects) {
+            int expected = 0;
+            for (TestProject other: projects) {
+                if (TSService.workerOf(other.rootURL) == TSService.workerOf(project.rootURL)
+                        && ! TSService.isEvicted(other.rootURL)) {
+                    expected += other.fileCount;
+                }
+            }
+            assertEquals(expected, TSService.workerFileCount(project.rootURL));
+        }
+
+        // And both programs still answer after the last eviction
+        TSService.evictPrograms(1);
+        for (TestProject project: projects) {
+            project.assertBroken(60);
+            assertFalse(TSService.isEvicted(project.rootURL));
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2015 Everlaw. All rights reserved.
+ *
+ * Oracle and Java are registered trademarks of Oracle and/or its affiliates.
+ * Other names may be trademarks of their respective owners.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common
+ * Development and Distribution License("CDDL") (collectively, the
+ * "License"). You may not use this file except in compliance with the
+ * License. You can obtain a copy of the License at
+ * http://www.netbeans.org/cddl-gplv2.html
+ * or nbbuild/licenses/CDDL-GPL-2-CP. See the License for the
+ * specific language governing permissions and limitations under the
+ * License.  When distributing the software, include this License Header
+ * Notice in each file and include the License file at
+ * nbbuild/licenses/CDDL-GPL-2-CP.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the GPL Version 2 section of the License file that
+ * accompanied this code. If applicable, add the following below the
+ * License Header, with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ *
+ * If you wish your version of this file to be governed by only the CDDL
+ * or only the GPL Version 2, indicate your decision by adding
+ * "[Contributor] elects to include this software in this distribution
+ * under the [CDDL or GPL Version 2] license." If you do not indicate a
+ * single choice of license, a recipient has the option to distribute
+ * your version of this file under either the CDDL, the GPL Version 2 or
+ * to extend the choice of license to its licensees as provided above.
+ * However, if you add GPL Version 2 code and therefore, elected the GPL
+ * Version 2 license, then the option applies only if the new code is
+ * made subject to such option by the copyright holder.
+ */
+package netbeanstypescript;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import junit.framework.Test;
+import org.netbeans.junit.NbModuleSuite;
+import org.netbeans.junit.NbTestCase;
+
+/**
+ * Kills the nodejs process behind a program while a request is outstanding, and checks that
+ * TSService fails the request, restarts the process and recreates the program in it.
+ *
+ * @author jeffrey
+ */
+public class TSServiceRecoveryTest extends NbTestCase {
+
+    public TSServiceRecoveryTest(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return NbModuleSuite.createConfiguration(TSServiceRecoveryTest.class)
+                .gui(false).clusters(".*").enableModules("netbeanstypescript").suite();
+    }
+
+    private TestProject project;
+
+    @Override
+    protected void setUp() throws Exception {
+        clearWorkDir();
+        project = new TestProject(getWorkDir(), 1000);
+        project.load();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TSService.removeProgram(project.rootURL);
+    }
+
+    public void testKilledWorkerIsRestarted() throws Exception {
+        // The first query builds the program, which keeps nodejs busy for a while
+        Future<TSService.Diagnostics> call = project.checkBroken();
+        Object worker = TSService.workerOf(project.rootURL);
+        assertFalse("answered before the process could be killed", call.isDone());
+        TSService.killWorker(project.rootURL);
+        try {
+            call.get(30, TimeUnit.SECONDS);
+            fail("request to a killed process did not fail");
+        } catch (ExecutionException e) {
+            // expected
+        }
+
+        long deadline = System.currentTimeMillis() + 60000;
+        while (TSService.workerOf(project.rootURL) == worker) {
+            assertTrue("process was not restarted", System.currentTimeMillis() < deadline);
+            Thread.sleep(50);
+        }
+        assertNotNull(TSService.workerOf(project.rootURL));
+
+        // The program is recreated in the new process from its files' paths
+        project.assertBroken(60);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2015 Everlaw. All rights reserved.
+ *
+ * Oracle and Java are registered trademarks of Oracle and/or its affiliates.
+ * Other names may be trademarks of their respective owners.
+ *
+ * The contents of this file are subject to the terms of either the GNU
+ * General Public License Version 2 only ("GPL") or the Common
+ * Development and Distribution License("CDDL") (collectively, the
+ * "License"). You may not use this file except in compliance with the
+ * License. You can obtain a copy of the License at
+ * http://www.netbeans.org/cddl-gplv2.html
+ * or nbbuild/licenses/CDDL-GPL-2-CP. See the License for the
+ * specific language governing permissions and limitations under the
+ * License.  When distributing the software, include this License Header
+ * Notice in each file and include the License file at
+ * nbbuild/licenses/CDDL-GPL-2-CP.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the GPL Version 2 section of the License file that
+ * accompanied this code. If applicable, add the following below the
+ * License Header, with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ *
+ * If you wish your version of this file to be governed by only the CDDL
+ * or only the GPL Version 2, indicate your decision by adding
+ * "[Contributor] elects to include this software in this distribution
+ * under the [CDDL or GPL Version 2] license." If you do not indicate a
+ * single choice of license, a recipient has the option to distribute
+ * your version of this file under either the CDDL, the GPL Version 2 or
+ * to extend the choice of license to its licensees as provided above.
+ * However, if you add GPL Version 2 code and therefore, elected the GPL
+ * Version 2 license, then the option applies only if the new code is
+ * made subject to such option by the copyright holder.
+ */
+package netbeanstypescript;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import static junit.framework.Assert.*;
+import org.openide.filesystems.FileObject;
+import org.openide.filesystems.FileUtil;
+
+/**
+ * A generated project on disk for the TSService tests: a chain of classes, each extending the
+ * one in the file before it, so that nodejs takes a while to check it, and one file with a
+ * single type error.
+ *
+ * @author jeffrey
+ */
+final class TestProject {
+    final FileObject root;
+    final URL rootURL;
+    final FileObject broken;
+    final int fileCount;
+
+    TestProject(File dir, int chainLength) throws IOException {
+        dir.mkdirs();
+        write(dir, "tsconfig.json", "{\"compilerOptions\": {\"module\": \"commonjs\"}}\n");
+        write(dir, "f0.ts", "export class C0 {}\n");
+        for (int i = 1; i < chainLength; i++) {
+            write(dir, "f" + i + ".ts", "import {C" + (i - 1) + "} from './f" + (i - 1) + "';\n"
+                    + "export class C" + i + " extends C" + (i - 1) + " {\n"
+                    + "    m" + i + "(): number { return " + i + "; }\n"
+                    + "}\n");
+        }
+        write(dir, "broken.ts", "export var broken: number = \"not a number\";\n");
+        fileCount = chainLength + 2;
+        root = FileUtil.toFileObject(FileUtil.normalizeFile(dir));
+        rootURL = root.toURL();
+        broken = root.getFileObject("broken.ts");
+    }
+
+    private static void write(File dir, String name, String text) throws IOException {
+        Files.write(new File(dir, name).toPath(), text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Adds every file to TSService by path, as the indexer does for files not open in the editor. */
+    void load() {
+        TSService.FileBatch batch = new TSService.FileBatch(false);
+        for (FileObject fileObj: root.getChildren()) {
+            batch.addExternal(fileObj, fileObj.getNameExt());
+        }
+        TSService.addFiles(rootURL, batch);
+    }
+
+    Future<TSService.Diagnostics> checkBroken() {
+        return TSService.callAsync(TSService.diagnosticsDecoder, "getDiagnostics", broken);
+    }
+
+    /** Checks broken.ts and asserts that nodejs reports its one error. */
+    void assertBroken(long timeoutSeconds) throws InterruptedException, ExecutionException, TimeoutException {
+        assertBroken(checkBroken().get(timeoutSeconds, TimeUnit.SECONDS));
+    }
+
+    static void assertBroken(TSService.Diagnostics diags) {
+        assertNull(diags.metaError);
+        assertEquals(1, diags.errs.size());
+        assertEquals(2322, diags.errs.get(0).code);
+    }
+}
@@ -21,17 +21,76 @@ import SEK = ts.ScriptElementKind;
 
 // Node.js stuff
 declare var require: any;
-declare module process { var stdin: any, stdout: any; }
+declare module process { var argv: string[], stdin: any, stdout: any; function memoryUsage(): { heapUsed: number }; }
+declare class Buffer {
+    static byteLength(s: string, encoding: string): number;
+    static concat(list: Buffer[], totalLength?: number): Buffer;
+    [index: number]: number;
+    length: number;
+    slice(start: number, end: number): Buffer;
+    toString(encoding: string, start?: number, end?: number): string;
+}
 declare class Set<T> { add(t: T): void; has(t: T): boolean; }
 
-var builtinLibs: {[name: string]: string} = {};
+var builtinLibs: {[name: string]: SnapshotImpl} = {};
+
+// stdin is not read while a request is running, so to cancel one the IDE instead creates a file
+// named after the request's ID in this directory. Checking for it costs a system call, so the
+// checks made from inside the language service are throttled.
+var cancellationDir: string = process.argv[2];
+var fs = require('fs');
+var crypto = require('crypto');
+class CancellationTokenImpl implements ts.HostCancellationToken {
+    requestId: string = null;
+    lastCheck = 0;
+    isCancellationRequested() {
+        var now = Date.now();
+        if (now - this.lastCheck < 10) {
+            return false;
+        }
+        this.lastCheck = now;
+        return this.isRequestCancelled();
+    }
+    isRequestCancelled() {
+        return !! (cancellationDir && this.requestId && fs.existsSync(cancellationDir + '/' + this.requestId));
+    }
+    throwIfCancellationRequested() {
+        if (this.isCancellationRequested()) {
+            throw new ts.OperationCanceledException();
+        }
+    }
+}
+var cancellationToken = new CancellationTokenImpl();
 
 class HostImpl implements ts.LanguageServiceHost, ts.ParseConfigHost {
     version = 0;
-    files: {[name: string]: {version: string; snapshot: SnapshotImpl}} = {};
+    // A file registered by path has no snapshot until it is first needed
+    files: {[name: string]: {version: string; snapshot: SnapshotImpl; path?: string}} = {};
     cachedConfig: {path: string; pcl: ts.ParsedCommandLine} = null;
+    // During a bulk load, the config is only marked stale, and evaluated again once at the end
+    bulkLoading = false;
+    configStale = false;
+    // Files changed since the language service last asked, so that it needn't look at every file
+    // after an edit. Only meaningful while the set of files stays the same.
+    changedFiles: {[name: string]: boolean} = {};
+    fileSetChanged = true;
+    fileChanged(fileName: string) {
+        this.version++;
+        this.changedFiles[fileName] = true;
+    }
+    invalidateConfig() {
+        this.fileSetChanged = true;
+        if (this.bulkLoading) {
+            this.configStale = true;
+        } else {
+            this.cachedConfig = null;
+        }
+    }
     log(s: string) {
-        process.stdout.write('L' + JSON.stringify(s) + '\n');
+        writeMessage('L', '0', JSON.stringify(s));
+    }
+    getCancellationToken() {
+        return cancellationToken;
     }
     getCompilationSettings() {
         var options = this.configUpToDate().pcl.options;
@@ -48,6 +107,12 @@ class HostImpl implements ts.LanguageServiceHost, ts.ParseConfigHost {
     getProjectVersion() {
         return String(this.version);
     }
+    getChangedScriptFileNames() {
+        var names = this.fileSetChanged ? undefined : Object.keys(this.changedFiles);
+        this.changedFiles = {};
+        this.fileSetChanged = false;
+        return names;
+    }
     getScriptFileNames() {
         return this.configUpToDate().pcl.fileNames;
     }
@@ -59,9 +124,13 @@ class HostImpl implements ts.LanguageServiceHost, ts.ParseConfigHost {
     }
     getScriptSnapshot(fileName: string): ts.IScriptSnapshot {
         if (fileName in builtinLibs) {
-            return new SnapshotImpl(builtinLibs[fileName]);
+            return builtinLibs[fileName];
         }
-        return this.files[fileName] && this.files[fileName].snapshot;
+        var file = this.files[fileName];
+        if (file && ! file.snapshot && file.path) {
+            file.snapshot = readDiskFile(file.path);
+        }
+        return file && file.snapshot;
     }
     getCurrentDirectory() {
         return "";
@@ -104,7 +173,7 @@ class HostImpl implements ts.LanguageServiceHost, ts.ParseConfigHost {
                 // tsconfig.json files under this root, pick the one with the shortest path.
                 tsConfigFiles.sort((a, b) => a.length - b.length || a.localeCompare(b))[0];
                 path = tsConfigFiles[0];
-                json = ts.parseConfigFileTextToJson(path, this.files[path].snapshot.text).config || {};
+                json = ts.parseConfigFileTextToJson(path, (<SnapshotImpl>this.getScriptSnapshot(path)).text).config || {};
             }
             var dir = ts.getDirectoryPath(path);
             this.cachedConfig = { path: path, pcl: ts.parseJsonConfigFileContent(json, this, dir) }
@@ -114,6 +183,11 @@ class HostImpl implements ts.LanguageServiceHost, ts.ParseConfigHost {
 }
 
 class SnapshotImpl implements ts.IScriptSnapshot {
+    // For snapshots created by Program.editFile, the snapshot that was edited and the exact range
+    // of the edit. The chain is cut off after a few edits so old texts can't pile up in memory.
+    prev: SnapshotImpl = null;
+    change: ts.TextChangeRange = null;
+    depth = 0;
     constructor(public text: string) {}
     getText(start: number, end: number) {
         return this.text.substring(start, end);
@@ -121,7 +195,31 @@ class SnapshotImpl implements ts.IScriptSnapshot {
     getLength() {
         return this.text.length;
     }
+    edit(start: number, end: number, newText: string) {
+        if (start < 0 || start > end || end > this.text.length) {
+            throw new Error("Edit range " + start + "-" + end + " out of bounds");
+        }
+        var snapshot = new SnapshotImpl(this.text.substring(0, start) + newText + this.text.substring(end));
+        if (this.depth < 16) {
+            snapshot.prev = this;
+            snapshot.change = ts.createTextChangeRange(ts.createTextSpan(start, end - start), newText.length);
+            snapshot.depth = this.depth + 1;
+        }
+        return snapshot;
+    }
     getChangeRange(oldSnapshot: SnapshotImpl): ts.TextChangeRange {
+        var changes: ts.TextChangeRange[] = [];
+        for (var s: SnapshotImpl = this; s !== oldSnapshot; s = s.prev) {
+            if (! s.prev) {
+                return this.diffRange(oldSnapshot);
+            }
+            changes.unshift(s.change);
+        }
+        // The language service won't ask about anything older than this again
+        oldSnapshot.prev = null;
+        return ts.collapseTextChangeRangesAcrossMultipleVersions(changes);
+    }
+    diffRange(oldSnapshot: SnapshotImpl): ts.TextChangeRange {
         var newText = this.text, oldText = oldSnapshot.text;
         var newEnd = newText.length, oldEnd = oldText.length;
         while (newEnd > 0 && oldEnd > 0 && newText.charCodeAt(newEnd) === oldText.charCodeAt(oldEnd)) {
@@ -136,56 +234,301 @@ class SnapshotImpl implements ts.IScriptSnapshot {
     }
 }
 
+// Reads a file that is not open in the IDE. Line endings are normalized the way the IDE does it,
+// so that offsets agree.
+function readDiskFile(path: string) {
+    try {
+        var text: string = fs.readFileSync(path, 'utf8');
+    } catch (e) {
+        writeMessage('L', '0', JSON.stringify("Could not read " + path + ": " + e));
+        return new SnapshotImpl("");
+    }
+    if (text.charCodeAt(0) === 0xFEFF) {
+        text = text.substring(1);
+    }
+    return new SnapshotImpl(text.replace(/\r\n?/g, '\n'));
+}
+
+// Source files are shared by all programs that have a file with the same name and text, so the
+// node_modules and typings declarations added to every source root are parsed and bound only once.
+// The key includes a hash of the text, and the text itself is compared on a hit.
+var sharedDocuments: {[key: string]: {sourceFile: ts.SourceFile; refCount: number}} = {};
+var registryCount = 0;
+
+function hashText(text: string) {
+    var hash = 0;
+    for (var i = 0; i < text.length; i++) {
+        hash = ((hash << 5) - hash + text.charCodeAt(i)) | 0;
+    }
+    return hash;
+}
+
+// The settings a source file is parsed or bound with (see getKeyFromCompilationSettings in
+// services.ts, and the options read by binder.ts). Only programs that agree on all of them can
+// share a file.
+function settingsKey(settings: ts.CompilerOptions) {
+    return [settings.target, settings.module, settings.noResolve, settings.jsx, settings.allowJs,
+            settings.allowUnreachableCode, settings.allowUnusedLabels, settings.preserveConstEnums,
+            settings.noFallthroughCasesInSwitch].join("|");
+}
+
+// Whether the program resolves module names in the file, which it stores on the source file. How
+// they resolve depends on the files in each source root, so such a file can't be shared.
+function importsModules(text: string, settings: ts.CompilerOptions) {
+    if (text.indexOf("import") < 0 && text.indexOf("require") < 0 && text.indexOf("module") < 0) {
+        return false;
+    }
+    var info = ts.preProcessFile(text, true, !!settings.allowJs);
+    return info.importedFiles.length > 0 || !!info.ambientExternalModules;
+}
+
+class DocumentRegistryImpl implements ts.DocumentRegistry {
+    // Files that import modules are only shared within this program
+    scope = "#" + (++registryCount);
+    // The entries this program holds a reference to by settings key and file name, and the version
+    // each was last requested at. After a change to the settings that affects syntax, the language
+    // service acquires every file with the new settings before it releases them with the old.
+    held: {[settings: string]: {[fileName: string]: {key: string; version: string}}} = {};
+    findShared(fileName: string, settings: string, text: string) {
+        var key = settings + "|" + fileName + "|" + text.length + "|" + hashText(text);
+        while (key in sharedDocuments && sharedDocuments[key].sourceFile.text !== text) {
+            key += "'";
+        }
+        return key;
+    }
+    hold(fileName: string, settings: string, key: string, version: string) {
+        sharedDocuments[key].refCount++;
+        (this.held[settings] || (this.held[settings] = {}))[fileName] = { key: key, version: version };
+        return sharedDocuments[key].sourceFile;
+    }
+    acquireDocument(fileName: string, settings: ts.CompilerOptions, snapshot: ts.IScriptSnapshot, version: string) {
+        var sk = settingsKey(settings);
+        if (this.held[sk] && fileName in this.held[sk]) {
+            this.releaseDocument(fileName, settings);
+        }
+        var text = snapshot.getText(0, snapshot.getLength());
+        var key = this.findShared(fileName, importsModules(text, settings) ? this.scope + "|" + sk : sk, text);
+        if (! (key in sharedDocuments)) {
+            sharedDocuments[key] = {
+                sourceFile: ts.createLanguageServiceSourceFile(fileName, snapshot, settings.target, version, false),
+                refCount: 0
+            };
+        }
+        return this.hold(fileName, sk, key, version);
+    }
+    updateDocument(fileName: string, settings: ts.CompilerOptions, snapshot: ts.IScriptSnapshot, version: string) {
+        var sk = settingsKey(settings);
+        var held = this.held[sk][fileName];
+        var entry = sharedDocuments[held.key];
+        if (held.version === version) {
+            return entry.sourceFile;
+        }
+        var text = snapshot.getText(0, snapshot.getLength());
+        var key = this.findShared(fileName, importsModules(text, settings) ? this.scope + "|" + sk : sk, text);
+        if (key === held.key) {
+            // Same text as before
+            held.version = version;
+            return entry.sourceFile;
+        } else if (key in sharedDocuments || entry.refCount > 1) {
+            // Another program has the new text already, or still uses the old one. Incremental
+            // parsing reuses nodes of the old tree in place, so only do that to an unshared file.
+            this.releaseDocument(fileName, settings);
+            return this.acquireDocument(fileName, settings, snapshot, version);
+        }
+        delete sharedDocuments[held.key];
+        sharedDocuments[key] = {
+            sourceFile: ts.updateLanguageServiceSourceFile(entry.sourceFile, snapshot, version,
+                snapshot.getChangeRange(entry.sourceFile.scriptSnapshot)),
+            refCount: 0
+        };
+        return this.hold(fileName, sk, key, version);
+    }
+    releaseDocument(fileName: string, settings: ts.CompilerOptions) {
+        this.release(settingsKey(settings), fileName);
+    }
+    release(settings: string, fileName: string) {
+        var bucket = this.held[settings];
+        var key = bucket[fileName].key;
+        delete bucket[fileName];
+        if (--sharedDocuments[key].refCount === 0) {
+            delete sharedDocuments[key];
+        }
+    }
+    releaseAll() {
+        Object.keys(this.held).forEach(settings =>
+            Object.keys(this.held[settings]).forEach(fileName => this.release(settings, fileName)));
+    }
+    reportStats() {
+        var held = 0;
+        Object.keys(this.held).forEach(settings => held += Object.keys(this.held[settings]).length);
+        return JSON.stringify({ held: held, shared: Object.keys(sharedDocuments).length });
+    }
+}
+
+function sha1(s: string): string {
+    return crypto.createHash('sha1').update(s, 'utf8').digest('hex');
+}
+
+// The hash of a source file's text is kept on the file, which is replaced when the text changes,
+// so that after an edit getDiagnosticsKeys only hashes the files that changed
+function textHash(file: ts.SourceFile): string {
+    var cached: {text: string; hash: string} = (<any>file).nbtsTextHash;
+    if (! cached || cached.text !== file.text) {
+        cached = (<any>file).nbtsTextHash = { text: file.text, hash: sha1(file.text) };
+    }
+    return cached.hash;
+}
+
+// Hashes, for each file, its own identity and that of every file it depends on directly or not.
+// Files that depend on each other are hashed together, grouped with Tarjan's algorithm, which is
+// done without recursion since a chain of imports can be thousands of files long.
+function dependencyHashes(idents: string[], deps: number[][]) {
+    var n = idents.length;
+    var order: number[] = new Array(n), low: number[] = new Array(n), onStack: boolean[] = new Array(n);
+    var group: number[] = new Array(n), groupHashes: string[] = [];
+    var stack: number[] = [], counter = 0;
+    var visit = (v: number) => {
+        order[v] = low[v] = counter++;
+        stack.push(v);
+        onStack[v] = true;
+    };
+    for (var root = 0; root < n; root++) {
+        if (order[root] !== undefined) continue;
+        visit(root);
+        var work = [{ v: root, next: 0 }];
+        while (work.length) {
+            var top = work[work.length - 1], v = top.v;
+            if (top.next < deps[v].length) {
+                var w = deps[v][top.next++];
+                if (order[w] === undefined) {
+                    visit(w);
+                    work.push({ v: w, next: 0 });
+                } else if (onStack[w]) {
+                    low[v] = Math.min(low[v], order[w]);
+                }
+                continue;
+            }
+            work.pop();
+            if (work.length) {
+                var parent = work[work.length - 1].v;
+                low[parent] = Math.min(low[parent], low[v]);
+            }
+            if (low[v] !== order[v]) continue;
+            // v and the files above it on the stack depend on each other. Every other file they
+            // depend on is in a group that has been hashed already.
+            var id = groupHashes.length, members: number[] = [], m: number;
+            do {
+                m = stack.pop();
+                onStack[m] = false;
+                group[m] = id;
+                members.push(m);
+            } while (m !== v);
+            var parts = members.map(m => idents[m]).sort();
+            var dependsOn: {[hash: string]: boolean} = {};
+            members.forEach(m => deps[m].forEach(d => {
+                if (group[d] !== id) dependsOn[groupHashes[group[d]]] = true;
+            }));
+            groupHashes.push(sha1(parts.concat(Object.keys(dependsOn).sort()).join('\n')));
+        }
+    }
+    return group.map(g => groupHashes[g]);
+}
+
+// Lists of spans are sent as one flat array: start, end, start, end, ...
+function packSpans(spans: ts.TextSpan[]) {
+    var packed: number[] = [];
+    spans.forEach(span => packed.push(span.start, span.start + span.length));
+    return packed;
+}
+
 class Program {
     host = new HostImpl();
-    service = ts.createLanguageService(this.host, ts.createDocumentRegistry(true));
-    updateFile(fileName: string, newText: string, modified: boolean) {
-        this.host.version++;
+    registry = new DocumentRegistryImpl();
+    service = ts.createLanguageService(this.host, this.registry);
+    // From the last getDiagnosticsKeys, and the host version they were computed at
+    diagnosticsKeys: {version: number; keys: {[fileName: string]: string}} = null;
+    updateFile(fileName: string, modified: boolean, newText: string) {
+        this.host.fileChanged(fileName);
         if (! (fileName in this.host.files) || /\.json$/.test(fileName)) {
-            this.host.cachedConfig = null;
+            this.host.invalidateConfig();
         }
         this.host.files[fileName] = {
             version: String(this.host.version),
             snapshot: new SnapshotImpl(newText)
         };
     }
+    // Registers a file that is unmodified in the IDE, to be read from disk when needed
+    setDiskFile(fileName: string, path: string) {
+        this.host.fileChanged(fileName);
+        if (! (fileName in this.host.files) || /\.json$/.test(fileName)) {
+            this.host.invalidateConfig();
+        }
+        this.host.files[fileName] = {
+            version: String(this.host.version),
+            snapshot: null,
+            path: path
+        };
+    }
+    beginBulkLoad() {
+        this.host.bulkLoading = true;
+    }
+    // Registers many files read from disk at once (see setDiskFile)
+    addDiskFiles(fileNames: string[], paths: string[]) {
+        for (var i = 0; i < fileNames.length; i++) {
+            this.setDiskFile(fileNames[i], paths[i]);
+        }
+    }
+    endBulkLoad() {
+        this.host.bulkLoading = false;
+        if (this.host.configStale) {
+            this.host.configStale = false;
+            this.host.cachedConfig = null;
+        }
+    }
+    editFile(fileName: string, start: number, end: number, modified: boolean, newText: string) {
+        var file = this.host.files[fileName];
+        if (! file) {
+            throw new Error("editFile: " + fileName + " not loaded");
+        }
+        this.host.fileChanged(fileName);
+        if (/\.json$/.test(fileName)) {
+            this.host.invalidateConfig();
+        }
+        file.version = String(this.host.version);
+        file.snapshot = file.snapshot.edit(start, end, newText);
+    }
     deleteFile(fileName: string) {
         this.host.version++;
-        this.host.cachedConfig = null;
+        this.host.invalidateConfig();
         delete this.host.files[fileName];
     }
     fileInProject(fileName: string) {
         return !!this.service.getProgram().getSourceFile(ts.normalizeSlashes(fileName));
     }
     getDiagnostics(fileName: string) {
-        var config = this.host.configUpToDate();
-        if (! this.fileInProject(fileName)) {
-            return {
-                errs: [],
-                metaError: "File " + fileName + " is not in project defined by " + config.path
-            };
-        }
-        var mapDiag = (diag: ts.Diagnostic) => ({
-            line: ts.getLineAndCharacterOfPosition(diag.file, diag.start).line + 1,
-            start: diag.start,
-            length: diag.length,
-            messageText: ts.flattenDiagnosticMessageText(diag.messageText, "\n"),
-            // 2602 and 7000-7026 are implicit-any errors
-            category: (diag.code === 2602 || diag.code >= 7000 && diag.code <= 7026) && ! config.pcl.options.noImplicitAny
-                ? ts.DiagnosticCategory.Warning
-                : diag.category,
-            code: diag.code
-        });
-        var errs = this.service.getSyntacticDiagnostics(fileName).map(mapDiag);
-        var metaError: string;
-        try {
-            // In case there are bugs in the type checker, make sure we can handle it throwing an
-            // exception and still show the syntactic errors.
-            errs = errs.concat(this.service.getSemanticDiagnostics(fileName).map(mapDiag));
-        } catch (e) {
-            metaError = "Error in getSemanticDiagnostics\n\n" + e.stack;
-        }
-        return { errs, metaError };
+        return checkFile(this, this.service.getProgram(), fileName);
+    }
+    // Checks files in the order given until budgetMillis have passed, but at least one, so that a
+    // batch doesn't keep the user's requests waiting for long. Returns the diagnostics of the files
+    // checked; the IDE asks again for the rest. The program is brought up to date once for the
+    // whole batch instead of once per file. A file that can't be checked gets a metaError, and
+    // does not keep the files after it from being checked.
+    getDiagnosticsBatch(fileNames: string[], budgetMillis: number) {
+        var program = this.service.getProgram();
+        var start = Date.now();
+        var results: any[] = [];
+        do {
+            var fileName = fileNames[results.length];
+            try {
+                results.push(checkFile(this, program, fileName));
+            } catch (e) {
+                if (e instanceof ts.OperationCanceledException) {
+                    throw e;
+                }
+                results.push({ errs: [], metaError: "Error checking " + fileName + "\n\n" + e.stack });
+            }
+        } while (results.length < fileNames.length && Date.now() - start < budgetMillis);
+        return results;
     }
     getCompletions(fileName: string, position: number, prefix: string, isPrefixMatch: boolean, caseSensitive: boolean) {
         if (! this.fileInProject(fileName)) return null;
@@ -241,10 +584,7 @@ class Program {
     getOccurrencesAtPosition(fileName: string, position: number) {
         if (! this.fileInProject(fileName)) return null;
         var occurrences = this.service.getOccurrencesAtPosition(fileName, position);
-        return occurrences && occurrences.map(occ => ({
-            start: occ.textSpan.start,
-            end: occ.textSpan.start + occ.textSpan.length
-        }));
+        return occurrences && packSpans(occurrences.map(occ => occ.textSpan));
     }
     getSemanticHighlights(fileName: string) {
         var program = this.service.getProgram();
@@ -252,16 +592,24 @@ class Program {
         if (! sourceFile) return null;
         var typeInfoResolver = program.getTypeChecker();
 
-        var results: any[] = [];
-        var resultByPos: {[pos: number]: any} = {};
+        // Highlights are sent as parallel arrays: starts (each relative to the one before),
+        // lengths, and bitmasks of indexes into attrs
+        var attrs: string[] = [];
+        var starts: number[] = [], lengths: number[] = [], bits: number[] = [];
+        var indexByPos: {[pos: number]: number} = {};
         function highlight(start: number, end: number, attr: string) {
-            var res = resultByPos[start];
-            if (! res) {
-                res = {s: start, l: end - start, a: []};
-                results.push(res);
-                resultByPos[start] = res;
+            var bit = attrs.indexOf(attr);
+            if (bit < 0) {
+                bit = attrs.push(attr) - 1;
             }
-            res.a.push(attr);
+            var i = indexByPos[start];
+            if (i === undefined) {
+                i = indexByPos[start] = starts.length;
+                starts.push(start);
+                lengths.push(end - start);
+                bits.push(0);
+            }
+            bits[i] |= 1 << bit;
         }
         function highlightIdent(node: ts.Identifier, attr: string) {
             // node.pos is too early (includes leading trivia)
@@ -285,6 +633,9 @@ class Program {
         }
 
         function walk(node: any) {
+            if (node.locals) {
+                cancellationToken.throwIfCancellationRequested();
+            }
             if (node.symbol && node.name && node.name.text) {
                 var isLocal: boolean;
                 if (node.kind === SK.Parameter && ! node.parent.body) {
@@ -383,7 +734,10 @@ class Program {
         localDecls.forEach(function(decl) {
             usedSymbols.has(decl.symbol) || highlightIdent(<any>decl.name, 'UNUSED');
         });
-        return results;
+        for (var i = starts.length - 1; i > 0; i--) {
+            starts[i] -= starts[i - 1];
+        }
+        return { attrs, starts, lengths, bits };
     }
     getStructureItems(fileName: string) {
         var program = this.service.getProgram();
@@ -483,27 +837,32 @@ class Program {
     }
     getFolds(fileName: string) {
         // ok if file not in project
-        return this.service.getOutliningSpans(fileName).map(os => ({
-            start: os.textSpan.start,
-            end: os.textSpan.start + os.textSpan.length
-        }));
+        return packSpans(this.service.getOutliningSpans(fileName).map(os => os.textSpan));
     }
     getReferencesAtPosition(fileName: string, position: number) {
         if (! this.fileInProject(fileName)) return null;
         var refs = this.service.getReferencesAtPosition(fileName, position);
-        return refs && refs.map(ref => {
+        if (! refs) return null;
+        // Sent as parallel arrays, with each file name given once and referred to by index
+        var result = {
+            fileNames: <string[]>[], files: <number[]>[], starts: <number[]>[], ends: <number[]>[],
+            lineStarts: <number[]>[], lineTexts: <string[]>[]
+        };
+        refs.forEach(ref => {
             var file = this.service.getSourceFile(ref.fileName);
             var lineStarts = file.getLineStarts();
             var line = ts.computeLineAndCharacterOfPosition(lineStarts, ref.textSpan.start).line;
-            return {
-                fileName: ref.fileName,
-                isWriteAccess: ref.isWriteAccess,
-                start: ref.textSpan.start,
-                end: ref.textSpan.start + ref.textSpan.length,
-                lineStart: lineStarts[line],
-                lineText: file.text.substring(lineStarts[line], lineStarts[line + 1])
-            };
+            var fileIndex = result.fileNames.indexOf(ref.fileName);
+            if (fileIndex < 0) {
+                fileIndex = result.fileNames.push(ref.fileName) - 1;
+            }
+            result.files.push(fileIndex);
+            result.starts.push(ref.textSpan.start);
+            result.ends.push(ref.textSpan.start + ref.textSpan.length);
+            result.lineStarts.push(lineStarts[line]);
+            result.lineTexts.push(file.text.substring(lineStarts[line], lineStarts[line + 1]));
         });
+        return result;
     }
     getFormattingEdits(fileName: string, start: number, end: number,
             indent: number, tabSize: number, expandTabs: boolean) {
@@ -541,17 +900,222 @@ class Program {
             };
         });
     }
+    // Keys of each file's diagnostics. The IDE checks a file again only when its key has changed,
+    // and saves diagnostics under their keys between sessions. A key hashes everything the
+    // diagnostics depend on: the TypeScript version and compiler options, the names and texts of
+    // the file and of every file it imports or references, directly or not, and those of the files
+    // that declare anything globally. This needs the program parsed, but not type checked. The key
+    // is null for a file that is not in the program.
+    getDiagnosticsKeys(fileNames: string[]) {
+        var options = this.host.configUpToDate().pcl.options;
+        var files = this.service.getProgram().getSourceFiles();
+        var index: {[fileName: string]: number} = {};
+        files.forEach((file, i) => index[ts.normalizePath(file.fileName)] = i);
+        var idents = files.map(file => file.fileName + ':' + textHash(file));
+        var deps = files.map(file => {
+            var fileDeps: number[] = [];
+            var add = (name: string) => {
+                var i = index[ts.normalizePath(name)];
+                if (i !== undefined) fileDeps.push(i);
+            };
+            file.referencedFiles.forEach(ref => add(ts.resolveTripleslashReference(ref.fileName, file.fileName)));
+            for (var name in file.resolvedModules) {
+                var resolved = file.resolvedModules[name];
+                if (resolved) add(resolved.resolvedFileName);
+            }
+            return fileDeps;
+        });
+        var globals = [ts.version, JSON.stringify(options)];
+        files.forEach((file, i) => {
+            if (! ts.isExternalModule(file) || (file.moduleAugmentations && file.moduleAugmentations.length)) {
+                globals.push(idents[i]);
+            }
+        });
+        var globalHash = sha1(globals.join('\n'));
+        var depHashes = dependencyHashes(idents, deps);
+        var keys: {[fileName: string]: string} = {};
+        this.diagnosticsKeys = { version: this.host.version, keys: keys };
+        return fileNames.map(fileName => {
+            var i = index[ts.normalizePath(fileName)];
+            return i === undefined ? null : (keys[fileName] = sha1(globalHash + '\n' + fileName + '\n' + depHashes[i]));
+        });
+    }
+    // The files that import or reference any of the given files directly, which the IDE checks
+    // for errors before the others after those files are edited
+    getImporters(fileNames: string[]) {
+        var edited: {[fileName: string]: boolean} = {};
+        fileNames.forEach(name => edited[ts.normalizePath(name)] = true);
+        var isEdited = (name: string) => edited[ts.normalizePath(name)] === true;
+        return this.service.getProgram().getSourceFiles().filter(file => {
+            if (file.referencedFiles.some(ref => isEdited(ts.resolveTripleslashReference(ref.fileName, file.fileName)))) {
+                return true;
+            }
+            for (var name in file.resolvedModules) {
+                var resolved = file.resolvedModules[name];
+                if (resolved && isEdited(resolved.resolvedFileName)) return true;
+            }
+            return false;
+        }).map(file => file.fileName);
+    }
     getEmitOutput(fileName: string) {
         if (! this.fileInProject(fileName)) return null;
         return this.service.getEmitOutput(fileName);
     }
 }
 
-require('readline').createInterface(process.stdin, process.stdout).on('line', (l: string) => {
+// The diagnostics of a file of the given program, which must be up to date
+function checkFile(p: Program, program: ts.Program, fileName: string) {
+    var config = p.host.configUpToDate();
+    var sourceFile = program.getSourceFile(ts.normalizeSlashes(fileName));
+    if (! sourceFile) {
+        return {
+            errs: [],
+            metaError: "File " + fileName + " is not in project defined by " + config.path
+        };
+    }
+    var mapDiag = (diag: ts.Diagnostic) => ({
+        line: ts.getLineAndCharacterOfPosition(diag.file, diag.start).line + 1,
+        start: diag.start,
+        length: diag.length,
+        messageText: ts.flattenDiagnosticMessageText(diag.messageText, "\n"),
+        // 2602 and 7000-7026 are implicit-any errors
+        category: (diag.code === 2602 || diag.code >= 7000 && diag.code <= 7026) && ! config.pcl.options.noImplicitAny
+            ? ts.DiagnosticCategory.Warning
+            : diag.category,
+        code: diag.code
+    });
+    var errs = program.getSyntacticDiagnostics(sourceFile, cancellationToken).map(mapDiag);
+    var metaError: string;
     try {
-        var r = JSON.stringify(eval(l));
-    } catch (error) {
-        r = 'X' + JSON.stringify(error.stack);
+        // In case there are bugs in the type checker, make sure we can handle it throwing an
+        // exception and still show the syntactic errors.
+        var semantic = program.getSemanticDiagnostics(sourceFile, cancellationToken);
+        if (program.getCompilerOptions().declaration) {
+            semantic = semantic.concat(program.getDeclarationDiagnostics(sourceFile, cancellationToken));
+        }
+        errs = errs.concat(semantic.map(mapDiag));
+    } catch (e) {
+        if (e instanceof ts.OperationCanceledException) {
+            throw e;
+        }
+        metaError = "Error in getSemanticDiagnostics\n\n" + e.stack;
+    }
+    // The key to save these diagnostics under, if nothing has changed since it was computed
+    var keys = p.diagnosticsKeys;
+    var key = keys && keys.version === p.host.version ? keys.keys[fileName] : undefined;
+    return { errs, metaError, key };
+}
+
+var programs: {[id: number]: Program} = {};
+
+// Requests that are not addressed to a particular program
+var globalCommands: {[method: string]: (...args: any[]) => any} = {
+    setBuiltinLib(name: string, text: string) {
+        builtinLibs[name] = new SnapshotImpl(text);
+    },
+    newProgram(id: number) {
+        programs[id] = new Program();
+    },
+    deleteProgram(id: number) {
+        if (id in programs) {
+            programs[id].registry.releaseAll();
+        }
+        delete programs[id];
+    }
+};
+
+// A request is a JSON array [programId, method, args...]. Nothing in it is evaluated as code;
+// the method must be one of globalCommands or a method of Program.
+function dispatch(request: any[]) {
+    var progId: number = request[0], method: string = request[1], args = request.slice(2);
+    if (progId === null) {
+        if (! globalCommands.hasOwnProperty(method)) {
+            throw new Error("Unknown command " + method);
+        }
+        return globalCommands[method].apply(null, args);
+    }
+    var program = programs[progId];
+    if (! program) {
+        throw new Error("No program " + progId);
+    }
+    if (method === 'constructor' || ! Program.prototype.hasOwnProperty(method)) {
+        throw new Error("Unknown method " + method);
+    }
+    return (<any>program)[method].apply(program, args);
+}
+
+// Every message in either direction starts with an ASCII header line giving its length in bytes.
+// Requests: "<id> <length>[ <textLength>]\n" followed by the JSON request and, if textLength is
+// given, that many bytes of raw UTF-8 text which is passed as an extra last argument.
+// Responses: "<kind><id> <length>\n" followed by JSON, where kind is R (the returned value), X (an
+// exception's stack trace), C (null, for a request that was cancelled), L (a log message, id 0)
+// or M (the heap size in bytes, id 0).
+function writeMessage(kind: string, id: string, json: string) {
+    process.stdout.write(kind + id + ' ' + Buffer.byteLength(json, 'utf8') + '\n' + json);
+}
+
+var header = '';
+var requestId: string = null;
+var jsonLength = 0, bodyLength = -1, bodyRead = 0, hasText = false;
+var bodyChunks: Buffer[] = [];
+// Report the heap size now and then so that new programs can be placed on the least loaded process
+var lastHeapReport = 0;
+function reportHeapUsage() {
+    var now = Date.now();
+    if (now - lastHeapReport >= 5000) {
+        lastHeapReport = now;
+        writeMessage('M', '0', String(process.memoryUsage().heapUsed));
+    }
+}
+
+process.stdin.on('data', (data: Buffer) => {
+    var pos = 0;
+    while (pos < data.length) {
+        if (bodyLength < 0) {
+            var nl = pos;
+            while (nl < data.length && data[nl] !== 10) nl++;
+            header += data.toString('ascii', pos, nl);
+            if (nl === data.length) {
+                return;
+            }
+            pos = nl + 1;
+            var fields = header.split(' ');
+            requestId = fields[0];
+            jsonLength = Number(fields[1]);
+            hasText = fields.length > 2;
+            bodyLength = hasText ? jsonLength + Number(fields[2]) : jsonLength;
+            bodyRead = 0;
+            header = '';
+        }
+        var n = Math.min(bodyLength - bodyRead, data.length - pos);
+        bodyChunks.push(data.slice(pos, pos + n));
+        bodyRead += n;
+        pos += n;
+        if (bodyRead === bodyLength) {
+            var body = Buffer.concat(bodyChunks, bodyLength);
+            bodyChunks = [];
+            bodyLength = -1;
+            cancellationToken.requestId = requestId;
+            cancellationToken.lastCheck = 0;
+            try {
+                if (cancellationToken.isRequestCancelled()) {
+                    throw new ts.OperationCanceledException();
+                }
+                var request: any[] = JSON.parse(body.toString('utf8', 0, jsonLength));
+                if (hasText) {
+                    request.push(body.toString('utf8', jsonLength));
+                }
+                var r = JSON.stringify(dispatch(request));
+                writeMessage('R', requestId, r === undefined ? 'null' : r);
+            } catch (error) {
+                if (error instanceof ts.OperationCanceledException) {
+                    writeMessage('C', requestId, 'null');
+                } else {
+                    writeMessage('X', requestId, JSON.stringify(error.stack));
+                }
+            }
+            cancellationToken.requestId = null;
+            reportHeapUsage();
+        }
     }
-    process.stdout.write(r + '\n');
 });
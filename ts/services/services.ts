@@ -1020,6 +1020,9 @@ namespace ts {
         getCompilationSettings(): CompilerOptions;
         getNewLine?(): string;
         getProjectVersion?(): string;
+        // netbeanstypescript: names of the files whose version changed since the last call, or
+        // undefined if the host can't tell or the set of script file names may have changed
+        getChangedScriptFileNames?(): string[];
         getScriptFileNames(): string[];
         getScriptVersion(fileName: string): string;
         getScriptSnapshot(fileName: string): IScriptSnapshot;
@@ -1729,15 +1732,17 @@ namespace ts {
         private _compilationSettings: CompilerOptions;
         private currentDirectory: string;
 
-        constructor(private host: LanguageServiceHost, private getCanonicalFileName: (fileName: string) => string) {
+        // netbeanstypescript: if rootFileNames is given, entries are only created on demand
+        constructor(private host: LanguageServiceHost, private getCanonicalFileName: (fileName: string) => string, private rootFileNames?: string[]) {
             // script id => script index
             this.currentDirectory = host.getCurrentDirectory();
             this.fileNameToEntry = createFileMap<HostFileInformation>();
 
             // Initialize the list with the root file names
-            const rootFileNames = host.getScriptFileNames();
-            for (const fileName of rootFileNames) {
-                this.createEntry(fileName, toPath(fileName, this.currentDirectory, getCanonicalFileName));
+            if (!rootFileNames) {
+                for (const fileName of host.getScriptFileNames()) {
+                    this.createEntry(fileName, toPath(fileName, this.currentDirectory, getCanonicalFileName));
+                }
             }
 
             // store the compilation settings
@@ -1781,6 +1786,9 @@ namespace ts {
         }
 
         public getRootFileNames(): string[] {
+            if (this.rootFileNames) {
+                return this.rootFileNames;
+            }
             const fileNames: string[] = [];
 
             this.fileNameToEntry.forEachValue((path, value) => {
@@ -2735,11 +2743,16 @@ namespace ts {
                 }
             }
 
+            // netbeanstypescript: if the host knows which files changed, and the set of files is the
+            // same as before, there is no need to ask it about every other file
+            const changedFileNames = host.getChangedScriptFileNames && host.getChangedScriptFileNames();
+            const changedFiles = program && changedFileNames && arrayToMap(changedFileNames, fileName => toPath(fileName, currentDirectory, getCanonicalFileName));
+
             // Get a fresh cache of the host information
-            let hostCache = new HostCache(host, getCanonicalFileName);
+            let hostCache = new HostCache(host, getCanonicalFileName, changedFiles && host.getScriptFileNames());
 
             // If the program is already up-to-date, we can reuse it
-            if (programUpToDate()) {
+            if (changedFiles ? !changedFileNames.length : programUpToDate()) {
                 return;
             }
 
@@ -2814,6 +2827,17 @@ namespace ts {
 
             function getOrCreateSourceFile(fileName: string): SourceFile {
                 Debug.assert(hostCache !== undefined);
+                if (changedFiles && !changesInCompilationSettingsAffectSyntax &&
+                    !hasProperty(changedFiles, toPath(fileName, currentDirectory, getCanonicalFileName))) {
+                    // netbeanstypescript: the host says this file is unchanged, so the old program's
+                    // source file is still current. The registry in main.ts never updates a source
+                    // file in place while another language service holds it.
+                    const oldSourceFile = program.getSourceFile(fileName);
+                    if (oldSourceFile) {
+                        return oldSourceFile;
+                    }
+                }
+
                 // The program is asking for this file, check first if the host can locate it.
                 // If the host can not locate the file, then it does not exist. return undefined
                 // to the program to allow reporting of errors for missing files.